@@ -1,4 +1,5 @@
 import lib.*;
+import java.io.File;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -27,6 +28,9 @@ public class Config extends UnicastRemoteObject implements Remote {
 
     private Map<Integer, BlockingQueue<ApplyMsg>> applyMsgMap;
 
+    private String[] nodeArgs;      /* Extra command line options for every Raft server. */
+    private File dataDir;           /* Where each server keeps its state, null to keep it in memory. */
+
     private Process spawnRaftPeer( int controllerPort, int id, int numServers ) {
 
         Process raftPeer = null;
@@ -36,6 +40,12 @@ public class Config extends UnicastRemoteObject implements Remote {
         commands.add(String.valueOf(controllerPort));
         commands.add(String.valueOf(id));
         commands.add(String.valueOf(numServers));
+        for( String arg : nodeArgs ) {
+            commands.add(arg);
+        }
+        if( dataDir != null ) {
+            commands.add(dataDir(id).getPath());
+        }
 
         ProcessBuilder builder = new ProcessBuilder(commands);
         builder.inheritIO();
@@ -86,6 +96,22 @@ public class Config extends UnicastRemoteObject implements Remote {
 
     /* Creates a configuration to be used by a tester or a service. */
     public Config( int numServers, boolean reliable, int ctrlPort ) throws RemoteException {
+        this( numServers, reliable, ctrlPort, new String[0] );
+    }
+
+    /* Same, with extra command line options such as -lease-reads=25 passed to every server. */
+    public Config( int numServers, boolean reliable, int ctrlPort, String... nodeArgs ) throws RemoteException {
+        this( numServers, reliable, ctrlPort, null, nodeArgs );
+    }
+
+    /*
+     * Same, with every server keeping its term, vote and log under its own
+     * directory of dataDir, so that it can be crashed and restarted.
+     */
+    public Config( int numServers, boolean reliable, int ctrlPort, File dataDir, String... nodeArgs ) throws RemoteException {
+
+        this.nodeArgs = nodeArgs;
+        this.dataDir = dataDir;
 
         /* Setup the transport layer controller. */
         controllerPort = ctrlPort;
@@ -143,6 +169,41 @@ public class Config extends UnicastRemoteObject implements Remote {
         transportLayerCtrl.disconnect(whichServer);
     }
 
+    /* The directory server "whichServer" keeps its state in. */
+    public File dataDir( int whichServer ) {
+        return new File(dataDir, "server-" + whichServer);
+    }
+
+    /* Kill server "whichServer", it keeps only what it wrote to its data directory. */
+    public void crash( int whichServer ) {
+        System.out.println("crash this " + whichServer);
+        this.connected[whichServer] = false;
+        raftPeers[whichServer].destroyForcibly();
+        try {
+            raftPeers[whichServer].waitFor();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            cleanup();
+        }
+        transportLayerCtrl.crash(whichServer);
+    }
+
+    /* Start a crashed server "whichServer" again and wait for it to register. */
+    public void restart( int whichServer ) {
+        System.out.println("restart this " + whichServer);
+        raftPeers[whichServer] = spawnRaftPeer(controllerPort, whichServer, numServers);
+
+        while( !transportLayerCtrl.isRegistered(whichServer) ) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                cleanup();
+            }
+        }
+        this.connected[whichServer] = true;
+    }
+
     /* Check that there's exactly one leader. */
     public int checkOneLeader() {
         System.out.println("Start to checkone leader");
@@ -328,6 +389,16 @@ public class Config extends UnicastRemoteObject implements Remote {
                 cleanup();
             }
 
+            if( applyMsg.useSnapshot ) {
+                /* The server replaced its state with a snapshot from the leader. */
+                errString = installSnapshot( me, applyMsg );
+                if( errString != null ) {
+                    System.err.println(errString);
+                    cleanup();
+                }
+                continue;
+            }
+
             for( int j= 0; j < this.logs.size(); j++) {
 
                 Map<Integer, Integer> logPerServer = this.logs.get(j);
@@ -351,7 +422,9 @@ public class Config extends UnicastRemoteObject implements Remote {
                 previousOk = false;
             }
 
-            logPerServer.put( applyMsg.index, applyMsg.command);
+            synchronized( logPerServer ) {
+                logPerServer.put( applyMsg.index, applyMsg.command);
+            }
 
 
             if( (applyMsg.index > 1) && (previousOk == false)) {
@@ -367,10 +440,81 @@ public class Config extends UnicastRemoteObject implements Remote {
         }
     }
 
+    /* Take the committed entries of a snapshot, they must match what the others committed. */
+    @SuppressWarnings("unchecked")
+    private String installSnapshot( int me, ApplyMsg applyMsg ) {
+
+        Map<Integer, Integer> snapshot;
+        try {
+            snapshot = (Map<Integer, Integer>) SerializationUtils.toObject(applyMsg.snapshot);
+        } catch (Exception e) {
+            return String.format("server %d sent an unreadable snapshot at %d", me, applyMsg.index);
+        }
+
+        for( int index = 1; index <= applyMsg.index; index++ ) {
+            if( !snapshot.containsKey(index) ) {
+                return String.format("server %d snapshot at %d misses index %d", me, applyMsg.index, index);
+            }
+        }
+
+        for( Map.Entry<Integer, Integer> e : snapshot.entrySet() ) {
+            for( int j = 0; j < this.logs.size(); j++ ) {
+                Map<Integer, Integer> logPerServer = this.logs.get(j);
+                synchronized( logPerServer ) {
+                    Integer old = logPerServer.get(e.getKey());
+                    if( old != null && !old.equals(e.getValue()) ) {
+                        return String.format("Snapshot index : %d, server = %d - %d != server = %d - %d",
+                                e.getKey(), me, e.getValue(), j, old);
+                    }
+                }
+            }
+        }
+
+        Map<Integer, Integer> logPerServer = this.logs.get(me);
+        synchronized( logPerServer ) {
+            logPerServer.putAll(snapshot);
+        }
+        return null;
+    }
+
+    /*
+     * Have server "whichServer" snapshot everything it has applied, the
+     * snapshot is the map of applied entries. Returns the snapshot index.
+     */
+    public int snapshot( int whichServer ) {
+
+        Map<Integer, Integer> logPerServer = this.logs.get(whichServer);
+        HashMap<Integer, Integer> snapshot = new HashMap<Integer, Integer>();
+        int index = 0;
+
+        synchronized( logPerServer ) {
+            while( logPerServer.containsKey(index + 1) ) {
+                index++;
+                snapshot.put(index, logPerServer.get(index));
+            }
+        }
+
+        try {
+            transportLayerCtrl.snapshot(whichServer, index, SerializationUtils.toByteArray(snapshot));
+        } catch (Exception e) {
+            e.printStackTrace();
+            cleanup();
+        }
+        return index;
+    }
+
     public StartReply start( int nodeID, int cmd ) {
         return transportLayerCtrl.start(nodeID, cmd);
     }
 
+    public ReadReply read( int nodeID ) {
+        return transportLayerCtrl.read(nodeID);
+    }
+
+    public boolean transferLeadership( int nodeID, int target ) {
+        return transportLayerCtrl.transferLeadership(nodeID, target);
+    }
+
 
     public int wait( int index, int n, int startTerm ) {
 
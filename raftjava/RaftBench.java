@@ -0,0 +1,693 @@
+import lib.*;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Micro benchmarks for the building blocks of the raft node. Like RaftTest,
+ * each benchmark is selected by name on the command line:
+ *
+ *   java RaftBench <BenchOption>
+ */
+public class RaftBench {
+
+    private static final int NUM_ARGS = 1;
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static Log newLog(String backend) {
+        return backend.equals("ListLog") ? new ListLog() : new ChunkedLog();
+    }
+
+    /* Heap retained by a log of n committed entries, per backend. */
+    private static void BenchLogMemory() {
+
+        int[] sizes = { 1000000, 10000000 };
+        String[] backends = { "ListLog", "ChunkedLog" };
+
+        System.out.println( "Log memory footprint (raw data is 12 bytes per entry) ..." );
+
+        for (int n : sizes) {
+            for (String backend : backends) {
+                long before = usedHeap();
+
+                Log log = newLog(backend);
+                for (int i = 1; i <= n; i++) {
+                    log.append(new LogEntries(1, i, i));
+                }
+                // steady state: everything committed, dedup index drained
+                log.commitTo(n);
+
+                long bytes = usedHeap() - before;
+                System.out.format("%-10s %,11d entries: %,14d bytes  %6.1f bytes/entry%n",
+                        backend, n, bytes, (double) bytes / n);
+
+                // keep the log reachable until measured
+                if (log.lastEntryIndex() != n) {
+                    System.err.println("Fatal : log lost entries");
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+
+    /* Appends per second through the write-ahead log when every append
+     * waits for its sync, with and without fsync, for several writers. */
+    private static void BenchWalAppend() throws Exception {
+
+        int[] writers = { 1, 4, 16 };
+        boolean[] fsyncs = { false, true };
+        long duration = 3000;
+
+        System.out.println( "Write-ahead log append + sync throughput ..." );
+
+        for (boolean fsync : fsyncs) {
+            for (int w : writers) {
+                File dir = Files.createTempDirectory("raft-wal").toFile();
+                WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, fsync);
+                wal.replay((term, index, command) -> {});
+
+                int[] next = { 1 };
+                long deadline = System.currentTimeMillis() + duration;
+                Thread[] threads = new Thread[w];
+
+                for (int t = 0; t < w; t++) {
+                    threads[t] = new Thread(() -> {
+                        try {
+                            while (System.currentTimeMillis() < deadline) {
+                                synchronized (wal) {
+                                    wal.append(1, next[0], next[0]);
+                                    next[0]++;
+                                }
+                                wal.sync();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread t : threads) t.join();
+
+                int appends = wal.getLastIndex();
+                System.out.format("fsync %-5s %2d writers: %,10.0f appends/s  %,8d syncs  %6.1f appends/sync%n",
+                        fsync, w, appends * 1000.0 / duration, wal.getSyncCount(),
+                        (double) appends / Math.max(wal.getSyncCount(), 1));
+
+                wal.close();
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private interface Encoder {
+        public byte[] encode(Object obj) throws Exception;
+    }
+
+    private interface Decoder {
+        public Object decode(byte[] bytes) throws Exception;
+    }
+
+    // average ns per call of op over iters calls, after as many warmup calls
+    private static double nanosPerOp(int iters, Runnable op) {
+        for (int i = 0; i < iters; i++) op.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iters; i++) op.run();
+        return (double) (System.nanoTime() - start) / iters;
+    }
+
+    private static Object sink;
+
+    /* Encode/decode cost and size of each raft message body, Java
+     * serialization against MessageCodec. */
+    private static void BenchMessageCodec() throws Exception {
+
+        ArrayList<LogEntries> batch = new ArrayList<>();
+        for (int i = 1; i <= 64; i++) {
+            batch.add(new LogEntries(7, 100000 + i, i));
+        }
+
+        String[] names = { "RequestVoteArgs", "RequestVoteReply", "Heartbeat",
+                "AppendEntries(64)", "AppendEntriesReply" };
+        Object[] bodies = {
+                new RequestVoteArgs(7, 2, 100064, 7),
+                new RequestVoteReply(7, true),
+                new AppendEntriesArg(7, 0, 100064, 7, (byte[]) null, 100060),
+                new AppendEntriesArg(7, 0, 100000, 7, batch, 100000),
+                new AppendEntriesReply(7, true),
+        };
+
+        Encoder[] encoders = { SerializationUtils::toByteArray, MessageCodec::encode };
+        Decoder[] decoders = { SerializationUtils::toObject, MessageCodec::decode };
+        String[] codecs = { "serialization", "MessageCodec" };
+        int iters = 200000;
+
+        System.out.println( "Message body encode/decode cost ..." );
+
+        for (int m = 0; m < bodies.length; m++) {
+            for (int c = 0; c < codecs.length; c++) {
+                Object body = bodies[m];
+                Encoder enc = encoders[c];
+                Decoder dec = decoders[c];
+                byte[] bytes = enc.encode(body);
+
+                double encode = nanosPerOp(iters, () -> {
+                    try {
+                        sink = enc.encode(body);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                double decode = nanosPerOp(iters, () -> {
+                    try {
+                        sink = dec.decode(bytes);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                System.out.format("%-19s %-14s %6d bytes  encode %9.1f ns/op  decode %9.1f ns/op%n",
+                        names[m], codecs[c], bytes.length, encode, decode);
+            }
+        }
+    }
+
+    private interface Sender {
+        public Message send(Message message) throws Exception;
+    }
+
+    // average round trip of a vote request from node 0 to node 1 through the network
+    private static double rpcMicros(Sender network, int iters) throws Exception {
+        Message msg = new Message(MessageType.RequestVoteArgs, 0, 1,
+                MessageCodec.encode(new RequestVoteArgs(0, 0, 0, 0)));
+        for (int i = 0; i < iters; i++) {
+            if (network.send(msg) == null) throw new IllegalStateException("no reply from node 1");
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iters; i++) network.send(msg);
+        return (System.nanoTime() - start) / 1000.0 / iters;
+    }
+
+    /* Per RPC latency through the RMI Controller, direct NIO sockets and the
+     * in-process network, then commit latency of clusters in this JVM. */
+    private static void BenchTransport() throws Exception {
+
+        System.out.println( "RPC round trip latency ..." );
+
+        int port = 15736;
+        Controller controller = new Controller(port);
+        new RaftNode(port, 0, 2);
+        new RaftNode(port, 1, 2);
+        MessagingLayer rmi = (MessagingLayer) java.rmi.Naming.lookup("rmi://localhost:" + port + "/MessageServer");
+        System.out.format("%-10s %10.1f us/rpc%n", "RMI", rpcMicros(rmi::send, 2000));
+
+        InetSocketAddress[] pair = NioTransport.parseAddresses("localhost:15740,localhost:15741");
+        new RaftNode(0, 1, 2, null, pair);
+        // node 0 is only a client here, it ignores the requests of node 1
+        NioTransport client = new NioTransport(0, pair, null, 1000);
+        System.out.format("%-10s %10.1f us/rpc%n", "NIO", rpcMicros(client::send, 20000));
+
+        LocalMessagingLayer local = new LocalMessagingLayer();
+        new RaftNode(local, 0, 2, null);
+        new RaftNode(local, 1, 2, null);
+        System.out.format("%-10s %10.1f us/rpc%n", "in-process", rpcMicros(local::send, 200000));
+
+        System.out.println( "Commit latency of a 3 node in-process cluster ..." );
+
+        LocalMessagingLayer network = new LocalMessagingLayer();
+        Map<Integer, BlockingQueue<ApplyMsg>> applied = new HashMap<>();
+        for (int i = 0; i < 3; i++) applied.put(i, new LinkedBlockingDeque<>());
+        network.setApplyMsgMap(applied);
+        for (int i = 0; i < 3; i++) new RaftNode(network, i, 3, null);
+
+        int leader = -1;
+        while (leader == -1) {
+            Thread.sleep(50);
+            for (int i = 0; i < 3; i++) {
+                if (network.getState(i).isLeader) leader = i;
+            }
+        }
+
+        int commits = 2000;
+        long start = System.nanoTime();
+        for (int c = 1; c <= commits; c++) {
+            StartReply reply = network.start(leader, c);
+            if (!reply.isLeader) throw new IllegalStateException("leader changed");
+            ApplyMsg msg;
+            do {
+                msg = applied.get(leader).take();
+            } while (msg.index < reply.index);
+        }
+        System.out.format("%-10s %10.1f us/commit%n", "in-process",
+                (System.nanoTime() - start) / 1000.0 / commits);
+
+        // same cluster over sockets, there is no controller to report applies
+        InetSocketAddress[] addrs = NioTransport.parseAddresses("localhost:15750,localhost:15751,localhost:15752");
+        RaftNode[] nodes = new RaftNode[3];
+        for (int i = 0; i < 3; i++) nodes[i] = new RaftNode(0, i, 3, null, addrs);
+
+        RaftNode nioLeader = null;
+        while (nioLeader == null) {
+            Thread.sleep(50);
+            for (RaftNode n : nodes) {
+                if (n.getState().isLeader) nioLeader = n;
+            }
+        }
+
+        start = System.nanoTime();
+        for (int c = 1; c <= commits; c++) {
+            StartReply reply = nioLeader.start(c);
+            if (!reply.isLeader) throw new IllegalStateException("leader changed");
+            while (nioLeader.getCommitIndex() < reply.index) Thread.onSpinWait();
+        }
+        System.out.format("%-10s %10.1f us/commit%n", "NIO",
+                (System.nanoTime() - start) / 1000.0 / commits);
+
+        // the exported RMI objects would keep the JVM running
+        System.exit(0);
+    }
+
+    /* CPU used by idle clusters in this JVM: elected leaders, no commands,
+     * only heartbeats and timers running. */
+    private static void BenchIdleCpu() throws Exception {
+
+        int clusters = 50;
+        long duration = 5000;
+
+        System.out.println( "CPU of " + clusters + " idle 3 node in-process clusters ..." );
+
+        for (int c = 0; c < clusters; c++) {
+            LocalMessagingLayer network = new LocalMessagingLayer();
+            for (int i = 0; i < 3; i++) new RaftNode(network, i, 3, null);
+        }
+        // let the elections settle
+        Thread.sleep(3000);
+
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)
+                java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+
+        long cpu = os.getProcessCpuTime();
+        Thread.sleep(duration);
+        cpu = os.getProcessCpuTime() - cpu;
+
+        System.out.format("%d nodes, %d threads: %.1f%% of one core, %.1f us cpu/node/s%n",
+                clusters * 3, threads.getThreadCount(), cpu / 1e4 / duration,
+                cpu / 1e3 / (clusters * 3) / (duration / 1000.0));
+
+        System.exit(0);
+    }
+
+    /* Commit throughput of a 3 node in-process cluster under concurrent
+     * start() calls, while prober threads read every node's state the way
+     * the tester does, and the latency of those probes. */
+    private static void BenchContention() throws Exception {
+
+        int[] clientCounts = { 1, 16 };
+        boolean[] durables = { false, true };
+        int probers = 4;
+        long duration = 3000;
+
+        System.out.println( "Commit throughput and getState latency under contention ..." );
+
+        for (boolean durable : durables) {
+            for (int clients : clientCounts) {
+                LocalMessagingLayer network = new LocalMessagingLayer();
+                network.setApplyMsgMap(new HashMap<>());
+                RaftNode[] nodes = new RaftNode[3];
+                File[] dirs = new File[3];
+                for (int i = 0; i < 3; i++) {
+                    dirs[i] = durable ? Files.createTempDirectory("raft-contention").toFile() : null;
+                    nodes[i] = new RaftNode(network, i, 3, durable ? dirs[i].getPath() : null);
+                }
+
+                RaftNode leader = null;
+                while (leader == null) {
+                    Thread.sleep(50);
+                    for (RaftNode n : nodes) {
+                        if (n.getState().isLeader) leader = n;
+                    }
+                }
+                RaftNode target = leader;
+
+                long deadline = System.currentTimeMillis() + duration;
+                java.util.concurrent.atomic.AtomicInteger command = new java.util.concurrent.atomic.AtomicInteger();
+                int startIndex = target.getCommitIndex();
+
+                Thread[] threads = new Thread[clients + probers];
+                for (int t = 0; t < clients; t++) {
+                    threads[t] = new Thread(() -> {
+                        while (System.currentTimeMillis() < deadline)
+                            target.start(command.incrementAndGet());
+                    });
+                }
+                long[][] probes = new long[probers][];
+                int[] probeCounts = new int[probers];
+                for (int t = 0; t < probers; t++) {
+                    int slot = t;
+                    probes[slot] = new long[1 << 22];
+                    threads[clients + t] = new Thread(() -> {
+                        int n = 0;
+                        while (System.currentTimeMillis() < deadline && n < probes[slot].length) {
+                            long start = System.nanoTime();
+                            nodes[n % 3].getState();
+                            probes[slot][n++] = System.nanoTime() - start;
+                        }
+                        probeCounts[slot] = n;
+                    });
+                }
+                for (Thread t : threads) t.start();
+                for (Thread t : threads) t.join();
+
+                int commits = target.getCommitIndex() - startIndex;
+                int total = 0;
+                for (int c : probeCounts) total += c;
+                long[] all = new long[total];
+                int pos = 0;
+                for (int t = 0; t < probers; t++) {
+                    System.arraycopy(probes[t], 0, all, pos, probeCounts[t]);
+                    pos += probeCounts[t];
+                }
+                java.util.Arrays.sort(all);
+
+                System.out.format("%-6s %2d clients: %,9.0f commits/s  getState p99 %,7.1f us  p99.9 %,9.1f us  max %,9.1f us%n",
+                        durable ? "disk" : "memory", clients, commits * 1000.0 / duration,
+                        all[(int) (total * 0.99)] / 1000.0, all[(int) (total * 0.999)] / 1000.0, all[total - 1] / 1000.0);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /* The third node of an in-process cluster starts only after the other
+     * two committed a long run of entries. Reports how fast it catches up
+     * and how many entries each AppendEntries carried, with requests
+     * unbounded, with the default append limits, and with those limits
+     * but one batch in flight at a time. */
+    private static void BenchCatchUp() throws Exception {
+
+        int entries = 100000;
+        int clients = 16;
+
+        System.out.println( "Catch-up of a follower " + entries + " entries behind ..." );
+
+        for (String mode : new String[] { "unbounded", "bounded", "stop-wait" }) {
+            LocalMessagingLayer network = new LocalMessagingLayer();
+            network.setApplyMsgMap(new HashMap<>());
+            RaftNode[] nodes = new RaftNode[3];
+            for (int i = 0; i < 2; i++) {
+                nodes[i] = new RaftNode(network, i, 3, null);
+                if (mode.equals("unbounded"))
+                    nodes[i].setAppendLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+                if (mode.equals("stop-wait"))
+                    nodes[i].setMaxInflightAppends(1);
+            }
+
+            int leader = -1;
+            while (leader < 0) {
+                Thread.sleep(50);
+                for (int i = 0; i < 2; i++) {
+                    if (nodes[i].getState().isLeader) leader = i;
+                }
+            }
+            RaftNode target = nodes[leader];
+
+            Thread[] threads = new Thread[clients];
+            for (int t = 0; t < clients; t++) {
+                int base = t * entries;
+                threads[t] = new Thread(() -> {
+                    for (int c = base; target.getCommitIndex() < entries; c++)
+                        target.start(c);
+                });
+            }
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+
+            int goal = target.getCommitIndex();
+            int rpcs = network.getRPCCount(2);
+            long start = System.nanoTime();
+            nodes[2] = new RaftNode(network, 2, 3, null);
+            while (nodes[2].getCommitIndex() < goal)
+                Thread.yield();
+            long nanos = System.nanoTime() - start;
+            rpcs = network.getRPCCount(2) - rpcs;
+
+            System.out.format("%-9s: %,d entries in %,7.1f ms, %,10.0f entries/s, %,5d rpcs, %,9.1f entries/rpc%n",
+                    mode, goal, nanos / 1e6, goal * 1e9 / nanos, rpcs, (double) goal / rpcs);
+        }
+
+        System.exit(0);
+    }
+
+    /* Linearizable reads on a 3 node in-process cluster: each read appended
+     * to the log through start(), against read() which confirms leadership
+     * with a heartbeat round shared by the reads waiting on it, and read()
+     * on a leader lease, with no round at all. */
+    private static void BenchReads() throws Exception {
+
+        int[] clientCounts = { 1, 16 };
+        long duration = 3000;
+
+        System.out.println( "Linearizable reads through the log, through read() and on a lease ..." );
+
+        for (String mode : new String[] { "log", "read()", "lease" }) {
+            boolean throughLog = mode.equals("log");
+            for (int clients : clientCounts) {
+                LocalMessagingLayer network = new LocalMessagingLayer();
+                network.setApplyMsgMap(new HashMap<>());
+                RaftNode[] nodes = new RaftNode[3];
+                for (int i = 0; i < 3; i++) {
+                    nodes[i] = new RaftNode(network, i, 3, null);
+                    nodes[i].setLeaseReads(mode.equals("lease"), 25);
+                }
+
+                RaftNode leader = null;
+                while (leader == null) {
+                    Thread.sleep(50);
+                    for (RaftNode n : nodes) {
+                        if (n.getState().isLeader) leader = n;
+                    }
+                }
+                RaftNode target = leader;
+                // the leader serves reads once it has committed in its term
+                target.start(0);
+                while (target.read().index < 0)
+                    Thread.sleep(10);
+
+                long deadline = System.currentTimeMillis() + duration;
+                java.util.concurrent.atomic.AtomicInteger reads = new java.util.concurrent.atomic.AtomicInteger();
+                java.util.concurrent.atomic.AtomicInteger command = new java.util.concurrent.atomic.AtomicInteger();
+                int startIndex = target.getCommitIndex();
+                int rpcs = 0;
+                for (int i = 0; i < 3; i++) rpcs -= network.getRPCCount(i);
+
+                Thread[] threads = new Thread[clients];
+                for (int t = 0; t < clients; t++) {
+                    threads[t] = new Thread(() -> {
+                        while (System.currentTimeMillis() < deadline) {
+                            boolean ok = throughLog ? target.start(command.incrementAndGet()).isLeader
+                                    : target.read().index >= 0;
+                            if (ok) reads.incrementAndGet();
+                        }
+                    });
+                }
+                for (Thread t : threads) t.start();
+                for (Thread t : threads) t.join();
+                for (int i = 0; i < 3; i++) rpcs += network.getRPCCount(i);
+
+                System.out.format("%-6s %2d clients: %,9.0f reads/s, %5.2f rpcs/read, log grew by %,d entries%n",
+                        mode, clients, reads.get() * 1000.0 / duration,
+                        (double) rpcs / reads.get(), target.getCommitIndex() - startIndex);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /* Per group cost of 3 hosts running many raft groups over GroupTransport,
+     * each group with a node on every host: heap, threads, idle CPU and
+     * messages, and commit latency, with and without heartbeat coalescing. */
+    private static void BenchMultiRaft() throws Exception {
+
+        int[] groupCounts = { 1000, 10000 };
+        long[] coalescing = { 2, 0 };
+        int hosts = 3;
+        long duration = 5000;
+
+        System.out.println( "Raft groups sharing 3 in-process hosts ..." );
+
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)
+                java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+
+        for (int groups : groupCounts) {
+            for (long coalesce : coalescing) {
+                long before = usedHeap();
+                int threadsBefore = threads.getThreadCount();
+
+                LocalMessagingLayer network = new LocalMessagingLayer();
+                GroupTransport[] host = new GroupTransport[hosts];
+                for (int h = 0; h < hosts; h++) {
+                    host[h] = new GroupTransport(network, h, hosts);
+                    host[h].setHeartbeatCoalescing(coalesce);
+                }
+                RaftNode[][] nodes = new RaftNode[groups][hosts];
+                for (int g = 0; g < groups; g++) {
+                    for (int h = 0; h < hosts; h++) nodes[g][h] = new RaftNode(host[h], g, null);
+                }
+
+                // every group elects a leader
+                long t0 = System.currentTimeMillis();
+                RaftNode[] leaders = new RaftNode[groups];
+                int elected = 0;
+                while (elected < groups) {
+                    Thread.sleep(50);
+                    for (int g = 0; g < groups; g++) {
+                        if (leaders[g] != null && leaders[g].getType() == Types.LEADER) continue;
+                        leaders[g] = null;
+                        for (RaftNode n : nodes[g]) {
+                            if (n.getType() == Types.LEADER) leaders[g] = n;
+                        }
+                    }
+                    elected = 0;
+                    for (RaftNode l : leaders) if (l != null) elected++;
+                    if (System.currentTimeMillis() - t0 > 60000)
+                        throw new IllegalStateException(elected + " of " + groups + " groups elected a leader");
+                }
+                long electMillis = System.currentTimeMillis() - t0;
+                // let the elections settle
+                Thread.sleep(2000);
+
+                long bytes = usedHeap() - before;
+                int groupThreads = threads.getThreadCount() - threadsBefore;
+
+                long rpcs = 0;
+                for (int h = 0; h < hosts; h++) rpcs -= network.getRPCCount(h);
+                long cpu = os.getProcessCpuTime();
+                Thread.sleep(duration);
+                cpu = os.getProcessCpuTime() - cpu;
+                for (int h = 0; h < hosts; h++) rpcs += network.getRPCCount(h);
+
+                // groups that lost their leader while idle, heartbeats arriving too late
+                int changed = 0;
+                for (int g = 0; g < groups; g++) {
+                    if (leaders[g].getType() != Types.LEADER) changed++;
+                }
+
+                // one command at a time on random groups, skipping those without a leader
+                int commits = 500, done = 0;
+                java.util.Random random = new java.util.Random(1);
+                long start = System.nanoTime();
+                for (int c = 1; c <= commits; c++) {
+                    RaftNode leader = null;
+                    for (RaftNode n : nodes[random.nextInt(groups)]) {
+                        if (n.getType() == Types.LEADER) leader = n;
+                    }
+                    StartReply reply = leader == null ? null : leader.start(c);
+                    if (reply == null || !reply.isLeader) continue;
+                    long deadline = System.currentTimeMillis() + 1000;
+                    // poll without spinning, the hosts may have a single core to share
+                    while (leader.getCommitIndex() < reply.index && System.currentTimeMillis() < deadline)
+                        java.util.concurrent.locks.LockSupport.parkNanos(50000);
+                    if (leader.getCommitIndex() >= reply.index) done++;
+                }
+                double commitMicros = (System.nanoTime() - start) / 1000.0 / Math.max(done, 1);
+
+                System.out.format("%,6d groups, coalescing %-4s: elected in %,6d ms, %,6d bytes/group, %4d threads%n"
+                                + "    idle: %5.1f%% of one core, %6.1f us cpu/group/s, %7.2f msgs/group/s, %,d leaders lost%n"
+                                + "    %d of %d commits, %,9.1f us/commit%n",
+                        groups, coalesce > 0 ? coalesce + "ms" : "off", electMillis, bytes / groups, groupThreads,
+                        cpu / 1e4 / duration, cpu / 1e3 / groups / (duration / 1000.0),
+                        rpcs * 1000.0 / duration / groups, changed, done, commits, commitMicros);
+
+                for (RaftNode[] group : nodes) {
+                    for (RaftNode n : group) n.stop();
+                }
+                nodes = null;
+                leaders = null;
+                Thread.sleep(1000);
+            }
+        }
+
+        System.exit(0);
+    }
+
+    public static void main( String[] args ) {
+
+        if( args.length != NUM_ARGS ) {
+            System.err.println( "Invalid number of arguments\n" );
+            return;
+        }
+
+        String benchCase = args[0];
+
+        try {
+            switch (benchCase) {
+                case "Log-Memory":
+                    BenchLogMemory();
+                    break;
+
+                case "WAL-Append":
+                    BenchWalAppend();
+                    break;
+
+                case "Message-Codec":
+                    BenchMessageCodec();
+                    break;
+
+                case "Transport":
+                    BenchTransport();
+                    break;
+
+                case "Idle-CPU":
+                    BenchIdleCpu();
+                    break;
+
+                case "Contention":
+                    BenchContention();
+                    break;
+
+                case "Catch-Up":
+                    BenchCatchUp();
+                    break;
+
+                case "Read":
+                    BenchReads();
+                    break;
+
+                case "Multi-Raft":
+                    BenchMultiRaft();
+                    break;
+
+                default:
+                    System.err.println( "Unknown benchmark " + benchCase );
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
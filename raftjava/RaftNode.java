@@ -1,27 +1,46 @@
 
 import lib.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
+// locking: the node monitor only guards role and term changes (toFollower,
+// toCandidate, toLeader, voting), logLock guards compound log updates and
+// the commit index, and each follower's Progress guards its replication
+// state. Locks are taken in that order. type, leaderID, commitIndex and
+// the term are volatile, so reading them takes no lock, and no lock is
+// held while a message is sent. Committed entries are applied by a thread
+// of their own.
 public class RaftNode implements MessageHandling {
     private int id;
-    private int leaderID;
-    private static TransportLib lib;
+    private volatile int leaderID;
+    private TransportLib lib;
     private int port;
     private int num_peers;
-    private Types type;
+    private volatile Types type;
+    // the term this node leads, -1 when it is no leader; set last when it
+    // becomes leader and cleared before the term moves, so a term read first
+    // and found equal to it was led by this node
+    private volatile int leaderTerm = -1;
 
-    private LogEntries lastEntry;
-    
-    private long electionTimeout;
     private int electionTimeoutMults = 25;
 
     private long heartbeatMillis = 150;
-    private long heartbeatTimeout;
+
+    // election and heartbeat deadlines, run on the timers shared by all nodes
+    private RaftTimer electionTimer;
+    private RaftTimer heartbeatTimer;
 
     private PersistentState state;
     private static final Random random = new Random();
@@ -29,55 +48,238 @@ public class RaftNode implements MessageHandling {
     // base election timeout
     private static final long T = 250;  // 250ms
 
-    private int commitIndex = 0; // index of highest log entry known to be committed
-    private int lastApplied = 0; //  index of highest log entry applied to state machine
-    private int firstIndexOfTerm = 0;
+    private final Object logLock = new Object();
+    private volatile int commitIndex = 0; // index of highest log entry known to be committed, guarded by logLock
+
+    // the applier thread delivers committed entries to the state machine in batches,
+    // committing never waits for it; it waits on applyLock for commitIndex to move
+    private final Object applyLock = new Object();
+    private volatile int lastApplied = 0; //  index of highest log entry applied to state machine, written by the applier
+    private int maxApplyBatch = 1024;
+
+    // a node of a raft group sharing its host with many others applies on the
+    // host's pool instead, one task at a time while applyScheduled is set
+    private Executor applyExecutor;
+    private final AtomicBoolean applyScheduled = new AtomicBoolean();
+
+    // the host and group of such a node, host is null otherwise
+    private GroupTransport host;
+    private int group;
+    private volatile boolean stopped;
+
+    // linearizable reads: a read waits for a heartbeat round started after it arrived
+    // to be acked by a majority, one round runs at a time and is shared by all the
+    // reads waiting on it; reads also wait on readLock for their index to be applied
+    private final Object readLock = new Object();
+    private volatile long readRound;   // last round started, every AppendEntries is tagged with it
+    private long confirmedRound;       // last round acked by a majority, guarded by readLock
+    private boolean nextRoundWanted;   // reads wait for the round after readRound, guarded by readLock
+    private long[] readAcks;           // highest round each node acked, guarded by readLock
+    private long readTimeoutMillis = 1000;
+
+    // lease reads, off by default: while a majority has acked AppendEntries sent less
+    // than leaseMillis ago, the leader serves reads without a round; in lease mode a
+    // follower that heard from its leader less than T ago votes for no other candidate,
+    // so no new leader can be elected before the lease runs out
+    private volatile boolean leaseReads = false;
+    private volatile long leaseMillis = T - 25; // T minus the clock drift margin
+    private long[] leaseAcks;          // send time of the last AppendEntries each node acked this term, guarded by readLock
+    private volatile long lastLeaderContact; // when the leader was last heard from, or the node started, in System.nanoTime
+    private static final long NEVER = Long.MIN_VALUE;
+
+    // leadership transfer: while transferee is set the leader takes no new entries
+    // and serves no lease reads; transferLeadership waits on transferLock for the
+    // transferee to catch up, then for this node to step down
+    private final Object transferLock = new Object();
+    private volatile int transferee = -1;
+
+    // replication state of one follower, guarded by its own monitor
+    // its match index, the highest log entry known to be replicated on it, is in matchIndex
+    private static final class Progress {
+        int term;                // leader term this state belongs to
+        int nextIndex;           // index of the next log entry to send to the server
+        int inflight;            // AppendEntries not yet answered
+        int inflightBytes;       // entry bytes in those requests
+        boolean installingSnapshot; // whether a snapshot transfer is running
+        boolean probing;         // match point not known yet, send empty probes one at a time
+    }
+    private Progress[] progress;
+
+    // match index of every node, the leader's own being its durable index,
+    // written under the node's Progress monitor
+    private QuorumTracker matchIndex;
+
+    // max AppendEntries batches outstanding to one follower, 1 disables pipelining,
+    // guarded by logLock
+    private int maxInflightAppends = 4;
+
+    // a lagging follower catches up in requests of at most this many entries and bytes,
+    // with at most maxInflightBytes of entries outstanding to it
+    private int maxAppendEntries = 4096;
+    private int maxAppendBytes = 1024 * 1024;
+    private int maxInflightBytes = 4 * 1024 * 1024;
+
+    // snapshots are sent to lagging followers in chunks of this size
+    private int snapshotChunkSize = 64 * 1024;
+
+    // snapshot being received from the leader, chunk by chunk
+    private ByteArrayOutputStream pendingSnapshot;
+    private int pendingSnapshotIndex;
+
+    // window and size threshold for grouping start() calls
+    private long proposalWindowMillis = 1;
+    private int maxProposalBatch = 64;
+    private volatile ProposalBatcher proposals;
+
+    private void resetElectionTimeout() {
+        if (stopped) return;
+        // electionTimeout: 250 to 490ms
+        electionTimer.reset(T + random.nextInt(electionTimeoutMults)*10);
+    }
 
-    private ArrayList<Integer> nextIndex; // for each server, index of the next log entry to sent to that server
-    private ArrayList<Integer> matchIndex; //  for each server, index of highest log entry known to be replicated on server
+    private void resetHeartbeatTimeout() {
+        if (stopped) return;
+        heartbeatTimer.reset(heartbeatMillis);
+    }
 
+    public int getPort() { return this.port; }
+    public void setLeaderId(int id) { this.leaderID = id; }
+    public int getLeaderId() { return this.leaderID; }
+    public Types getType() { return this.type; }
+    public int getCommitIndex() { return commitIndex; }
+    public ProposalBatcher getProposalBatcher() { return this.proposals; }
+
+    // serve reads on a leader lease, every node of the cluster must agree on this,
+    // the lease is cut short by driftMillis to allow for clocks running at different rates
+    public void setLeaseReads(boolean enabled, long driftMillis) {
+        if (driftMillis < 0 || driftMillis >= T)
+            throw new IllegalArgumentException("bad clock drift margin: " + driftMillis);
+        this.leaseMillis = T - driftMillis;
+        this.leaseReads = enabled;
+    }
 
-    private synchronized void resetElectionTimeout() {
-        // electionTimeout: 200 to 450ms
-        electionTimeout = System.currentTimeMillis() + T + random.nextInt(electionTimeoutMults)*10;
+    // limits for the AppendEntries sent to one follower, see maxAppendEntries
+    public void setAppendLimits(int maxEntries, int maxBytes, int maxInflightBytes) {
+        if (maxEntries < 1 || maxBytes < LogRecords.RECORD_SIZE || maxInflightBytes < maxBytes)
+            throw new IllegalArgumentException("bad append limits: " + maxEntries + ", " + maxBytes + ", " + maxInflightBytes);
+        synchronized(logLock) {
+            this.maxAppendEntries = maxEntries;
+            this.maxAppendBytes = maxBytes;
+            this.maxInflightBytes = maxInflightBytes;
+        }
     }
 
-    private synchronized void resetHeartbeatTimeout() {
-        heartbeatTimeout = System.currentTimeMillis() + heartbeatMillis;
+    // max AppendEntries batches outstanding to one follower, 1 sends the next
+    // batch only once the previous one is answered
+    public void setMaxInflightAppends(int maxInflight) {
+        if (maxInflight < 1)
+            throw new IllegalArgumentException("bad inflight appends limit: " + maxInflight);
+        synchronized(logLock) {
+            this.maxInflightAppends = maxInflight;
+        }
     }
 
-    public int getPort() { return this.port; }
-    public synchronized void setLeaderId(int id) { this.leaderID = id; }
-    public synchronized int getLeaderId() { return this.leaderID; }
-    public synchronized long getCurrentElectionTimeout() { return this.electionTimeout; }
-    public synchronized long getCurrentHeartbeatTimeout() { return this.heartbeatTimeout; }
-    public synchronized Types getType() { return this.type; }
-    public synchronized int getCommitIndex() { return commitIndex; }
+    // how long the first start() of a batch waits for others to join, and the batch
+    // size that is appended without waiting further; a window of 0 appends every
+    // command on its own, the batches in progress finish with the old settings
+    public void setProposalBatching(long windowMillis, int maxBatch) {
+        if (windowMillis < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("bad proposal batching: " + windowMillis + ", " + maxBatch);
+        synchronized(logLock) {
+            this.proposalWindowMillis = windowMillis;
+            this.maxProposalBatch = maxBatch;
+            this.proposals = new ProposalBatcher(windowMillis, maxBatch, this::appendBatch);
+        }
+    }
 
     public RaftNode(int port, int id, int num_peers) throws Exception {
-        this.id = id;
+        this(port, id, num_peers, null);
+    }
+
+    // with a data directory, term, vote and log are written to disk
+    // and recovered from it when the node is constructed again
+    public RaftNode(int port, int id, int num_peers, String dataDir) throws Exception {
+        this(port, id, num_peers, dataDir, null);
+    }
+
+    // with peer addresses, messages go straight to the peers over sockets
+    // and the controller at port, if any, only drives and observes the node
+    public RaftNode(int port, int id, int num_peers, String dataDir, InetSocketAddress[] peers) throws Exception {
         this.port = port;
+        init(id, num_peers, dataDir);
+
+        // register with the network last, messages may arrive as soon as we do
+        lib = new TransportLib(port, id, this, peers);
+        launch();
+    }
+
+    // a node of a cluster running in this JVM, messages are passed in memory
+    public RaftNode(LocalMessagingLayer network, int id, int num_peers, String dataDir) throws IOException {
+        this.port = -1;
+        init(id, num_peers, dataDir);
+
+        lib = new TransportLib(network, id, this);
+        launch();
+    }
+
+    // the node of this host in one raft group, sharing the host's transport,
+    // timers and threads with the host's other groups; id is the host's
+    public RaftNode(GroupTransport host, int group, String dataDir) throws IOException {
+        this.port = -1;
+        init(host.getId(), host.getNumHosts(), dataDir);
+        this.applyExecutor = host.getApplyExecutor();
+        this.host = host;
+        this.group = group;
+
+        lib = host.register(group, this);
+        launch();
+    }
+
+    private void init(int id, int num_peers, String dataDir) throws IOException {
+        this.id = id;
         this.num_peers = num_peers;
         this.leaderID = -1;
 
         // start as follower
         this.type = Types.FOLLOWER;
+        this.lastLeaderContact = System.nanoTime();
 
-        lib = new TransportLib(port, id, this);
+        this.state = dataDir == null ? new PersistentState() : new PersistentState(new File(dataDir), true);
 
-        this.state = new PersistentState();
+        progress = new Progress[num_peers];
+        for (int i = 0; i < num_peers; i++)
+            progress[i] = new Progress();
+        matchIndex = new QuorumTracker(num_peers);
+        readAcks = new long[num_peers];
+        leaseAcks = new long[num_peers];
+        Arrays.fill(leaseAcks, NEVER);
 
-        nextIndex = new ArrayList<>();
-        matchIndex = new ArrayList<>();
-        try {
-            // set election timeout before launching periodic tasks
-            resetElectionTimeout();
-            resetHeartbeatTimeout();
-            launchPeriodicTasksThread();
-        } catch (Exception e) {
-            e.printStackTrace();
+        proposals = new ProposalBatcher(proposalWindowMillis, maxProposalBatch, this::appendBatch);
+
+        electionTimer = new RaftTimer(this::onElectionTimeout);
+        heartbeatTimer = new RaftTimer(this::onHeartbeatTimeout);
+    }
+
+    // stop the node's timers, it no longer starts elections or sends heartbeats,
+    // and a node of a raft group leaves its host, which drops the group's messages
+    public void stop() {
+        stopped = true;
+        electionTimer.stop();
+        heartbeatTimer.stop();
+        if (host != null)
+            host.unregister(group, this);
+    }
+
+    private void launch() {
+        if (applyExecutor == null) {
+            Thread applier = new Thread(this::runApplier, "Applier-" + id);
+            applier.setDaemon(true);
+            applier.start();
         }
 
+        // the heartbeat timer is armed by toLeader
+        resetElectionTimeout();
+
         // System.err.println("\nRaftNode created with id: " + id + " starting at port " + port + "\n");
     }
 
@@ -87,21 +289,38 @@ public class RaftNode implements MessageHandling {
 
         boolean voted = false;
 
+        // our leader may be serving reads on its lease, do not help elect another
+        // unless the leader itself handed over to the candidate and stopped serving reads;
+        // a node that just started may have acked a leader before it went down, it
+        // counts its start as contact with a leader it no longer knows
+        if (leaseReads && type == Types.FOLLOWER && requestVoteArgs.getCandidateId() != leaderID
+                && !requestVoteArgs.isLeadershipTransfer()
+                && System.nanoTime() - lastLeaderContact < TimeUnit.MILLISECONDS.toNanos(T))
+            return new RequestVoteReply(state.getCurrentTerm(), false);
+
+        // a newer term moves us to that term as a follower before voting,
+        // otherwise a vote cast in an older term would block this election
+        if (requestVoteArgs.getTerm() > this.state.getCurrentTerm())
+            this.toFollower(requestVoteArgs.getTerm(), -1);
+
         // a valid vote should have the same term (updated above)
         // should have votedFor set for this candidate or unset
         // should have more updated last log index
         // larger term wins
         // if terms are equal, larger index wins
 
+        int lastTerm;
+        int lastIndex;
+        synchronized(logLock) {
+            lastTerm = this.state.getLog().lastEntryTerm();
+            lastIndex = this.state.getLog().lastEntryIndex();
+        }
+
         if(requestVoteArgs.getTerm() >= this.state.getCurrentTerm() && (state.getVotedFor() == -1
                 || state.getVotedFor() == requestVoteArgs.getCandidateId())
-                &&  (requestVoteArgs.getLastLogTerm() > this.state.getLog().lastEntryTerm() ||
-                     (requestVoteArgs.getLastLogTerm() == this.state.getLog().lastEntryTerm()
-                     && requestVoteArgs.getLastLogIndex() >= this.state.getLog().lastEntryIndex()))) {
-
-            // set current as follower since others have higher term
-            if (requestVoteArgs.getTerm() > this.state.getCurrentTerm())
-                this.toFollower(requestVoteArgs.getTerm(), requestVoteArgs.getCandidateId());
+                &&  (requestVoteArgs.getLastLogTerm() > lastTerm ||
+                     (requestVoteArgs.getLastLogTerm() == lastTerm
+                     && requestVoteArgs.getLastLogIndex() >= lastIndex))) {
 
             voted = true;
             this.state.setVotedFor(requestVoteArgs.getCandidateId());
@@ -128,260 +347,491 @@ public class RaftNode implements MessageHandling {
         return new RequestVoteReply(state.getCurrentTerm(), voted);
     }
 
+    // answer a pre-vote: would we vote for this candidate in the term it proposes?
+    // neither our term nor our vote changes, so asking costs the cluster nothing
+    public synchronized RequestVoteReply preVote(RequestVoteArgs requestVoteArgs) {
+        int term = state.getCurrentTerm();
+        if (requestVoteArgs.getTerm() <= term)
+            return new RequestVoteReply(term, false);
+
+        // we lead, or heard from our leader within the minimum election timeout,
+        // so the candidate is the one cut off and there is no need for an election
+        if (type == Types.LEADER || (leaderID != -1
+                && System.nanoTime() - lastLeaderContact < TimeUnit.MILLISECONDS.toNanos(T)))
+            return new RequestVoteReply(term, false);
+
+        int lastTerm;
+        int lastIndex;
+        synchronized(logLock) {
+            lastTerm = this.state.getLog().lastEntryTerm();
+            lastIndex = this.state.getLog().lastEntryIndex();
+        }
+
+        boolean granted = requestVoteArgs.getLastLogTerm() > lastTerm ||
+                (requestVoteArgs.getLastLogTerm() == lastTerm && requestVoteArgs.getLastLogIndex() >= lastIndex);
+        return new RequestVoteReply(term, granted);
+    }
+
 
     // handle append entries request
     // reply to hearbeats and log entries
-    public synchronized AppendEntriesReply AppendEntries(AppendEntriesArg appendEntriesArg) {
+    // the term is settled under the node monitor, the log is updated under logLock
+    public AppendEntriesReply AppendEntries(AppendEntriesArg appendEntriesArg) {
 
-        // has stale term
-        if(appendEntriesArg.getTerm() < state.getCurrentTerm()) {
-            return new AppendEntriesReply(state.getCurrentTerm(), false);
-        }
+        synchronized(this) {
+            // has stale term
+            if(appendEntriesArg.getTerm() < state.getCurrentTerm()) {
+                return new AppendEntriesReply(state.getCurrentTerm(), false);
+            }
 
-        // transfer to follower status if the current node is waiting for election result
-        // if already follower, that's ok, still update the leader and current term
-        // also update the current leader
+            // transfer to follower status if the current node is waiting for election result
+            // if already follower, that's ok, still update the leader and current term
+            // also update the current leader
 
-        if ((appendEntriesArg.getTerm() > state.getCurrentTerm()) || 
-            (getType() == Types.CANDIDATE && appendEntriesArg.getTerm() == state.getCurrentTerm())) {
-            this.toFollower(appendEntriesArg.getTerm(), appendEntriesArg.getLeaderId());
-        }
+            if ((appendEntriesArg.getTerm() > state.getCurrentTerm()) ||
+                (getType() == Types.CANDIDATE && appendEntriesArg.getTerm() == state.getCurrentTerm())) {
+                this.toFollower(appendEntriesArg.getTerm(), appendEntriesArg.getLeaderId());
+            }
 
-        // handle incorrect leader case
-        if (appendEntriesArg.getLeaderId() != getLeaderId()) {
-            // // System.err.println("Node " + id + " says Not my leader!!!");
-            // // System.err.println(appendEntriesArg.getLeaderId() + " " + getLeaderId());
-            return new AppendEntriesReply(this.state.getCurrentTerm(), false);
-        } else {
+            // there is only one leader per term, so a sender with our term is the leader
+            // even if we learned the term from a vote request instead of from it
+            if (appendEntriesArg.getLeaderId() != getLeaderId()) {
+                // // System.err.println("Node " + id + " says Not my leader!!!");
+                // // System.err.println(appendEntriesArg.getLeaderId() + " " + getLeaderId());
+                setLeaderId(appendEntriesArg.getLeaderId());
+            }
             resetElectionTimeout();
+            lastLeaderContact = System.nanoTime();
         }
-        // append log to log entries
-
-        // consistency check;
-        boolean isConsistent = false;
 
-        // current log index smaller than prevLogIndex index
-        // or current log does not contain an entry at prevLogIndex
-        // where term matches
+        AppendEntriesReply reply = appendEntriesToLog(appendEntriesArg);
+        if (reply.isSuccess())
+            applyCommitted();
+        return reply;
+    }
 
-        // // System.err.println("Append Entries Arg parameters, prev log index: " + appendEntriesArg.getPrevLogIndex()
-        // + " prev log term: " +  appendEntriesArg.getPrevLogTerm());
+    // the log part of AppendEntries: consistency check, append and commit
+    private AppendEntriesReply appendEntriesToLog(AppendEntriesArg appendEntriesArg) {
+        synchronized(logLock) {
+            // the term moved on since it was checked, this leader is stale
+            if (appendEntriesArg.getTerm() != state.getCurrentTerm()) {
+                return new AppendEntriesReply(state.getCurrentTerm(), false);
+            }
 
-        // appendEntriesArg.getLeaderId() != getLeaderId()
-        if (this.state.getLog().lastEntryIndex() < appendEntriesArg.getPrevLogIndex() || 
-            (appendEntriesArg.getPrevLogIndex() > 0 && 
-                    appendEntriesArg.getPrevLogTerm() != this.state.getLog().getEntry(appendEntriesArg.getPrevLogIndex()).getTerm())) {
-            // System.err.println("Inconsistent logs!");
-            isConsistent = false;
-        } else {
-            // System.err.println("Consistent logs! Appending!");
-            isConsistent = true;
-        }
+            // consistency check;
+            boolean isConsistent = false;
+
+            // current log index smaller than prevLogIndex index
+            // or current log does not contain an entry at prevLogIndex
+            // where term matches
+
+            // // System.err.println("Append Entries Arg parameters, prev log index: " + appendEntriesArg.getPrevLogIndex()
+            // + " prev log term: " +  appendEntriesArg.getPrevLogTerm());
+
+            // entries up to our snapshot are committed, so they always match
+            if (this.state.getLog().lastEntryIndex() < appendEntriesArg.getPrevLogIndex() ||
+                (appendEntriesArg.getPrevLogIndex() > this.state.getLog().getSnapshotIndex() &&
+                        appendEntriesArg.getPrevLogTerm() != this.state.getLog().getTermAtIndex(appendEntriesArg.getPrevLogIndex()))) {
+                // System.err.println("Inconsistent logs!");
+                isConsistent = false;
+            } else {
+                // System.err.println("Consistent logs! Appending!");
+                isConsistent = true;
+            }
 
+            if(isConsistent) {
+                // append entries if consistent
+                // entries are appended straight from the packed records
+                if (appendEntriesArg.getEntryCount() != 0) {
+                    ByteBuffer records = ByteBuffer.wrap(appendEntriesArg.getPackedEntries());
+                    for (int i = 0; i < appendEntriesArg.getEntryCount(); i++) {
+                        // a corrupted record fails the request, the leader will resend it
+                        if (!LogRecords.valid(records, 0, i) || !state.getLog().append(LogRecords.term(records, 0, i),
+                                LogRecords.index(records, 0, i), LogRecords.command(records, 0, i))) {
+                            // System.err.println("Append entries fails");
+                            return new AppendEntriesReply(this.state.getCurrentTerm(), false);
+                        }
+                    }
+                }
 
+                // the log matches the leader's up to the last entry of this request only,
+                // entries after it may still conflict (an empty probe checks prevLogIndex alone),
+                // so commit no further than that, applying happens after the lock is released
+                int lastNewIndex = appendEntriesArg.getPrevLogIndex() + appendEntriesArg.getEntryCount();
+                int leaderCommit = Math.min(appendEntriesArg.getLeaderCommit(), lastNewIndex);
+                if (leaderCommit > commitIndex && leaderCommit <= state.getLog().lastEntryIndex()) {
+                    commitIndex = leaderCommit;
+                    state.getLog().commitTo(commitIndex);
+                }
 
-        if(isConsistent) {
-            // append entries if consistent
-            if (appendEntriesArg.getEntries() != null && appendEntriesArg.getEntries().size() != 0) {
-                for (LogEntries e : appendEntriesArg.getEntries()) {
-                    if (!state.getLog().append(e)) {
-                        // System.err.println("Append entries fails");
-                        return new AppendEntriesReply(this.state.getCurrentTerm(), false);
-                    }
+                return new AppendEntriesReply(this.state.getCurrentTerm(), true);
+            } else {
+
+                // tell the leader where to look next: past our log end when it is too short,
+                // otherwise the start of our entries in the conflicting term, so that it
+                // skips the whole term in one round trip
+                Log log = this.state.getLog();
+                int conflictIndex, conflictTerm;
+                if (log.lastEntryIndex() < appendEntriesArg.getPrevLogIndex()) {
+                    conflictIndex = log.lastEntryIndex() + 1;
+                    conflictTerm = -1;
+                } else {
+                    conflictTerm = log.getTermAtIndex(appendEntriesArg.getPrevLogIndex());
+                    conflictIndex = log.firstIndexOfTerm(appendEntriesArg.getPrevLogIndex());
                 }
-            }
 
-            // it should have all the log entries server has now
-            // so it should be safe to apply
-            if (appendEntriesArg.getLeaderCommit() > commitIndex && appendEntriesArg.getLeaderCommit() <= state.getLog().lastEntryIndex()) {
-                int newCommitIndex = appendEntriesArg.getLeaderCommit();
-                try {
-                    applyTillNewCommitIndex(commitIndex, newCommitIndex);
-                } catch (RemoteException r) {
-                    r.printStackTrace();
-                    return new AppendEntriesReply(this.state.getCurrentTerm(), false);
+                // don't delete the commited ones
+                if (appendEntriesArg.getPrevLogIndex() >= commitIndex) {
+                    this.state.getLog().deleteConflictingEntries(appendEntriesArg.getPrevLogIndex()+1);
                 }
-            }
 
-            if (appendEntriesArg.getEntries() != null && appendEntriesArg.getEntries().size() != 0) {
-                // System.err.println("Append entries succeeds");
+                // System.err.println("Append entries fails");
+
                 // System.err.println("\n Checking log entry of node " + id + " \n");
                 // state.getLog().dumpEntries();
-            }
-            return new AppendEntriesReply(this.state.getCurrentTerm(), true);
-        } else {
 
-            // don't delete the commited ones
-            if (appendEntriesArg.getPrevLogIndex() >= commitIndex) {
-                this.state.getLog().deleteConflictingEntries(appendEntriesArg.getPrevLogIndex()+1);
+                return new AppendEntriesReply(this.state.getCurrentTerm(), false,
+                        conflictIndex, conflictTerm, log.lastEntryIndex());
             }
+        }
+    }
 
-            // System.err.println("Append entries fails");
 
-            // System.err.println("\n Checking log entry of node " + id + " \n");
-            // state.getLog().dumpEntries();
 
-            return new AppendEntriesReply(this.state.getCurrentTerm(), false);
+    // election timer expired: no heartbeat from a leader, or our own
+    // election did not reach a quorum in time, so try for another one
+    private void onElectionTimeout() {
+        if (stopped)
+            return;
+        if (getType() == Types.LEADER) {
+            // keep the timer running, a leader can step down without resetting it
+            resetElectionTimeout();
+            return;
         }
+        startPreVote();
     }
 
+    // ask the peers whether they would vote for us in the next term, without moving to it,
+    // and only start the real election once a quorum says yes; a node cut off from the
+    // cluster never gets one, so it keeps its term and cannot depose the leader when it
+    // comes back; a pre-vote that fails is retried when the election timeout expires again
+    public void startPreVote() {
+        int preVoteTerm;
+        RequestVoteArgs ra;
+
+        synchronized(this) {
+            if (getType() == Types.LEADER)
+                return;
+            resetElectionTimeout();
 
+            preVoteTerm = this.state.getCurrentTerm();
+            synchronized(logLock) {
+                ra = new RequestVoteArgs(preVoteTerm + 1, this.id, state.getLog().lastEntryIndex(),
+                        state.getLog().getLastTerm());
+            }
+        }
 
-    // run periodic task: election and hearbeat
-    // election will only be run if there is no leader in the cluster
-    // or when the leader doesn't respond
-    private void launchPeriodicTasksThread() {
-        final Thread t1 = new Thread(() -> {
-                try {
-                    while(true) {
-                        Thread.sleep(10);
-                        runPeriodicHeartbeat();
-                        runPeriodicElection();
-                    }
-                } catch (Throwable e) {
-                   e.printStackTrace();
-                }
+        AtomicInteger votes = new AtomicInteger(1);
+        if (votes.get() > num_peers/2) {
+            // single node cluster
+            startElectionAfterPreVote(preVoteTerm);
+            return;
+        }
 
-        }, "RaftNode");
+        byte[] data = MessageCodec.encode(ra);
+        for(int i = 0; i < this.num_peers; i++) {
+            if(i == id) continue;
 
-        t1.start();
+            Message msg = new Message(MessageType.PreVoteArgs, id, i, data);
+            lib.sendMessageAsync(msg).thenAccept(re -> onPreVoteReply(re, preVoteTerm, votes));
+        }
     }
 
+    // count a pre-vote reply, the quorum-reaching one starts the election
+    private void onPreVoteReply(Message cur, int preVoteTerm, AtomicInteger votes) {
+        RequestVoteReply reply;
+        try {
+            if (cur == null)
+                return;
+            reply = (RequestVoteReply) MessageCodec.decode(cur.getBody());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
 
-    // periodic task, for now just choose new leader
-    // don't have to be synchronized
-    private void runPeriodicElection() throws Exception {
-        // run election as long as we don't receive heartbeat from leader
-
-        // only FOLLOWER can start election
-        if(System.currentTimeMillis() > getCurrentElectionTimeout() && (getType() == Types.FOLLOWER)) {
-            startElection();
+        synchronized(this) {
+            if (reply.getTerm() > this.state.getCurrentTerm()) {
+                // the cluster moved on without us, follow the newer term
+                this.toFollower(reply.getTerm(), -1);
+                return;
+            }
+            if (!reply.isVoteGranted() || votes.incrementAndGet() != num_peers/2 + 1)
+                return;
         }
-    }
 
-    private void runPeriodicHeartbeat() throws Exception {
-        // run election as long as we don't receive heartbeat from leader
+        startElectionAfterPreVote(preVoteTerm);
+    }
 
-        // if current node is leader, periodically send heartbeat
-        if (System.currentTimeMillis() > getCurrentHeartbeatTimeout() && (getType() == Types.LEADER)) {
+    // the pre-vote in preVoteTerm succeeded, run the real election unless something
+    // changed since: a new term was seen or this node became leader
+    private void startElectionAfterPreVote(int preVoteTerm) {
+        try {
+            startElection(preVoteTerm, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            resetHeartbeatTimeout();
-            for (int i = 0; i < num_peers; i++) {
-                if (i != id)
-                    sendAppendEntriesRequest(i);
-            }
-            commitEntry();
-            resetHeartbeatTimeout();
+    // heartbeat timer expired: a leader sends heartbeats, which re-arms it
+    private void onHeartbeatTimeout() {
+        if (getType() == Types.LEADER && !stopped) {
+            broadcastTo();
+            // heartbeats of the round may have been lost
+            if (readRound != confirmedRound())
+                sendReadRound();
         }
     }
 
     // start an election
-    // this method does not have to be synchronized
-    public void startElection() throws RemoteException, IOException, ClassNotFoundException {
-
-        // transition to candidate
-        this.toCandidate();
+    // vote requests go out to all peers at once and this method returns without
+    // waiting for them, the candidate becomes leader as soon as a quorum replies
+    public void startElection() throws IOException {
+        startElection(-1, false);
+    }
 
-        // atomic integer vote to assure thread-safety
-        AtomicInteger votes = new AtomicInteger(1);
+    // with fromTerm set, only if the node is still a non-leader in that term;
+    // transfer marks an election the leader asked for through TimeoutNow
+    private void startElection(int fromTerm, boolean transfer) throws IOException {
 
-        int lastIndex = state.getLog().lastEntryIndex();
-        int lastTerm = state.getLog().getLastTerm();
+        int electionTerm;
+        RequestVoteArgs ra;
 
-        // prepare vote request
-        RequestVoteArgs ra = new RequestVoteArgs(this.state.getCurrentTerm(), this.id, lastIndex, lastTerm);
-        byte[] data = SerializationUtils.toByteArray(ra);
+        synchronized(this) {
+            if (fromTerm != -1 && (getType() == Types.LEADER || state.getCurrentTerm() != fromTerm))
+                return;
 
-        if (num_peers > 1) {
+            // transition to candidate
+            this.toCandidate();
 
-            for(int i = 0; i < this.num_peers; i++) {
-                if(i == id) continue;
+            electionTerm = this.state.getCurrentTerm();
+            synchronized(logLock) {
+                int lastIndex = state.getLog().lastEntryIndex();
+                int lastTerm = state.getLog().getLastTerm();
 
-                // need to persistently try until got a message
-                Message msg = new Message(MessageType.RequestVoteArgs, id, i, data);
+                // prepare vote request
+                ra = new RequestVoteArgs(electionTerm, this.id, lastIndex, lastTerm, transfer);
+            }
+        }
 
-                Message cur = null;
-                RequestVoteReply reply = null;
+        // atomic integer vote to assure thread-safety
+        AtomicInteger votes = new AtomicInteger(1);
+        byte[] data = MessageCodec.encode(ra);
 
-                cur = lib.sendMessage(msg);
-                if (cur == null)
-                    continue;
+        if (votes.get() > num_peers/2) {
+            // single node cluster
+            synchronized(this) {
+                if (getType() == Types.CANDIDATE && state.getCurrentTerm() == electionTerm)
+                    toLeader();
+            }
+            return;
+        }
 
-                reply = (RequestVoteReply) SerializationUtils.toObject(cur.getBody());
+        for(int i = 0; i < this.num_peers; i++) {
+            if(i == id) continue;
 
-                if (reply.getTerm() > this.state.getCurrentTerm()) {
-                    // reply has higher term, means current node cannot be leader
-                    this.toFollower(reply.getTerm(), i);
-                    break;
-                } else if (reply.getTerm() <= this.state.getCurrentTerm()) {
+            Message msg = new Message(MessageType.RequestVoteArgs, id, i, data);
+            final int peer = i;
+            lib.sendMessageAsync(msg).thenAccept(re -> onVoteReply(peer, re, electionTerm, votes));
+        }
 
-                    if (reply.isVoteGranted()) {
-                        votes.getAndIncrement();
-                    }
+        // a candidate that does not reach a quorum retries once its election timeout expires
+    }
 
-                    // more than half, selected as leader
-                    if(votes.get() > num_peers/2) {
-                        if (getType() == Types.CANDIDATE) {
-                            toLeader();
-                        }
+    // count a vote reply towards the election it belongs to
+    private void onVoteReply(int peer, Message cur, int electionTerm, AtomicInteger votes) {
+        RequestVoteReply reply;
+        try {
+            if (cur == null)
+                return;
+            reply = (RequestVoteReply) MessageCodec.decode(cur.getBody());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
 
-                        break;
-                    }
-                }
+        synchronized(this) {
+            if (reply.getTerm() > this.state.getCurrentTerm()) {
+                // reply has higher term, means current node cannot be leader
+                this.toFollower(reply.getTerm(), peer);
+                return;
             }
-        }
 
-        // convert back to follower
-        // wait for next turn
-        if (this.type != Types.LEADER) {
-            this.toFollower(this.state.getCurrentTerm(), getLeaderId());
+            // a straggler from an election that is already decided or superseded
+            if (getType() != Types.CANDIDATE || state.getCurrentTerm() != electionTerm)
+                return;
+
+            // more than half, selected as leader
+            if (reply.isVoteGranted() && votes.incrementAndGet() > num_peers/2) {
+                toLeader();
+            }
         }
 
-        // System.err.println("Election finishes, node: " + id + " vote count is: " + votes.get() + " the current leaderID is: " + getLeaderId());
+        // System.err.println("Vote reply from: " + peer + " node: " + id + " vote count is: " + votes.get());
     }
 
     // Upon wining election, send heartbeats to server
+    // this only starts asynchronous sends and never blocks
     public void broadcastTo() {
         if (getType() != Types.LEADER)
             return;
 
         resetHeartbeatTimeout();
         for(int i = 0; i < num_peers; i++) {
-            try {
-                if (i != id)
-                    sendAppendEntriesRequest(i);
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (i != id)
+                replicateTo(i, true);
+        }
+    }
+
+    // fill a follower's pipeline with up to maxInflightAppends batches and maxInflightBytes of entries
+    // nextIndex is advanced optimistically as each batch goes out
+    // with heartbeat set, an idle follower gets an empty AppendEntries
+    // a follower that needs entries we already compacted gets the snapshot instead
+    // batches are built under logLock and the follower's Progress, and sent after both are released
+    private void replicateTo(int serverId, boolean heartbeat) {
+        Progress p = progress[serverId];
+
+        while (true) {
+            AppendEntriesArg args = null;
+            Snapshot snapshot = null;
+            int term;
+            boolean more;
+
+            synchronized(logLock) {
+                synchronized(p) {
+                    term = p.term;
+                    if (type != Types.LEADER || state.getCurrentTerm() != term || p.installingSnapshot)
+                        return;
+
+                    if (p.nextIndex <= state.getLog().getSnapshotIndex()) {
+                        snapshot = state.getSnapshot();
+                        p.installingSnapshot = true;
+                        more = false;
+                    } else {
+                        if (p.inflight >= (p.probing ? 1 : maxInflightAppends))
+                            return;
+
+                        boolean hasEntries = !p.probing && this.state.getLog().lastEntryIndex() >= p.nextIndex;
+
+                        // batches already in flight double as heartbeats,
+                        // a follower being probed gets its next probe right away
+                        if (!hasEntries && !p.probing && (!heartbeat || p.inflight > 0))
+                            return;
+
+                        // the bytes window is full, the next reply sends more
+                        if (hasEntries && p.inflight > 0 && p.inflightBytes + nextAppendBytes(p) > maxInflightBytes)
+                            return;
+
+                        args = nextAppendEntries(p, term);
+                        p.inflight++;
+                        p.inflightBytes += appendBytes(args);
+                        more = hasEntries;
+                    }
+                }
             }
 
+            if (snapshot != null) {
+                sendSnapshotChunk(serverId, snapshot, term, 0);
+                return;
+            }
+            sendAppendEntries(serverId, args);
+            if (!more)
+                return;
         }
-        resetHeartbeatTimeout();
+    }
+
+    // entries in one AppendEntries, within both maxAppendEntries and maxAppendBytes
+    private int appendBatchLimit() {
+        return Math.min(maxAppendEntries, Math.max(1, maxAppendBytes / LogRecords.RECORD_SIZE));
+    }
+
+    // entry bytes the next batch to a follower would carry
+    // the caller holds logLock and the follower's Progress
+    private int nextAppendBytes(Progress p) {
+        int count = Math.min(appendBatchLimit(), this.state.getLog().lastEntryIndex() - p.nextIndex + 1);
+        return Math.max(count, 0) * LogRecords.RECORD_SIZE;
+    }
+
+    private static int appendBytes(AppendEntriesArg args) {
+        return args.getEntryCount() * LogRecords.RECORD_SIZE;
+    }
+
+    // build the next batch for a follower and move its nextIndex past it
+    // entries are copied as packed records, a durable log copies them
+    // straight out of its mapped segment files
+    // a batch is capped by appendBatchLimit, the rest follows in further batches
+    // a follower being probed gets no entries until its match point is found
+    // the caller holds logLock and the follower's Progress
+    private AppendEntriesArg nextAppendEntries(Progress p, int term) {
+        byte[] entries = null;
+
+        // leader has more updated log
+        // get the entires after server's next index to update server, one bounded batch
+        if(!p.probing && this.state.getLog().lastEntryIndex() >= p.nextIndex) {
+            int to = (int) Math.min(this.state.getLog().lastEntryIndex(), (long) p.nextIndex + appendBatchLimit() - 1);
+            entries = state.getLog().getPackedEntries(p.nextIndex, to);
+        }
+
+        // be careful with the corner case
+        // what if nextIndex is 0?
+        int prevLogIndex = Math.max(p.nextIndex-1, 0);
+        int prevLogTerm = state.getLog().getTermAtIndex(prevLogIndex);
+
+        p.nextIndex = prevLogIndex + LogRecords.count(entries) + 1;
 
+        // System.err.println("Append Entries Request, prevlogIndex: " + prevLogIndex + " prevLogTerm: " + prevLogTerm);
+        return new AppendEntriesArg(term, this.id, prevLogIndex, prevLogTerm,
+                entries, commitIndex);
     }
 
     // update term and set voted for, and convert the type
     public synchronized void toCandidate() {
-        this.state.setCurrentTerm(this.state.getCurrentTerm() + 1);
-        this.state.setVotedFor(this.id);
+        this.leaderTerm = -1;
+        this.state.setTermAndVote(this.state.getCurrentTerm() + 1, this.id);
         this.type = Types.CANDIDATE;
 
         resetElectionTimeout();
     }
 
 
+    // whether this node is the leader of term; read the term first, the
+    // role and the term change apart, under the node monitor only
+    private boolean leads(int term) {
+        return leaderTerm == term;
+    }
+
     // operations related to convert to leader
     public synchronized void toLeader() {
-        nextIndex.clear();
-        matchIndex.clear();
-        this.type = Types.LEADER;
-        leaderID = id;
-        firstIndexOfTerm = this.state.getLog().lastEntryIndex() + 1;
-        // reinitialize matchIndex and nextIndex
+        int term = this.state.getCurrentTerm();
+        int firstIndexOfTerm = this.state.getLog().lastEntryIndex() + 1;
+        // reinitialize matchIndex and nextIndex, replies to an earlier term no longer match
         for (int i = 0; i < num_peers; i++) {
-            matchIndex.add(0);
-            nextIndex.add(firstIndexOfTerm);
-            assert nextIndex.get(i) != 0;
+            Progress p = progress[i];
+            synchronized(p) {
+                p.term = term;
+                matchIndex.update(i, i == id ? state.getDurableIndex() : 0);
+                p.nextIndex = firstIndexOfTerm;
+                p.inflight = 0;
+                p.inflightBytes = 0;
+                p.probing = true;
+            }
+        }
+        // acks from an earlier term say nothing about this one
+        synchronized(readLock) {
+            Arrays.fill(leaseAcks, NEVER);
         }
+        leaderID = id;
+        this.type = Types.LEADER;
+        this.leaderTerm = term;
         broadcastTo();
     }
 
@@ -390,102 +840,261 @@ public class RaftNode implements MessageHandling {
     // and update votedFor state
     // reset election timeout
     public synchronized void toFollower(int term, int leaderId) {
-        this.state.setCurrentTerm(term);
-        // invalidate vote when converting to follower
-        this.state.setVotedFor(-1);
+        this.leaderTerm = -1;
+        // invalidate vote when moving to a newer term, a candidate that
+        // finds the leader of its own term keeps the vote it cast in it
+        if (term > this.state.getCurrentTerm())
+            this.state.setTermAndVote(term, -1);
         this.type = Types.FOLLOWER;
         this.leaderID = leaderId;
 
         resetElectionTimeout();
+
+        // reads waiting for a confirmation of this node's leadership fail
+        synchronized(readLock) {
+            readLock.notifyAll();
+        }
+        notifyTransfer();
     }
 
 
     // used to send log entry message
-    // return true for success, false for failure
-    public boolean sendAppendEntriesRequest(int serverId)
-            throws RemoteException, ClassNotFoundException, IOException{
-        boolean retry = true;
-
-        while (retry) {
-            synchronized(this) {
-                if(type != Types.LEADER) return false;
-                ArrayList<LogEntries> entries = new ArrayList<LogEntries>();
+    // sends one batch built by nextAppendEntries, the reply is handled
+    // when it arrives and no thread waits for it
+    // an empty one may go out together with the heartbeats of other groups
+    private void sendAppendEntries(int serverId, AppendEntriesArg args) {
+        Message msg = new Message(MessageType.AppendEntriesArg, id, serverId, MessageCodec.encode(args));
+        long round = readRound;
+        long sent = System.nanoTime();
+        CompletableFuture<Message> reply = args.getEntryCount() == 0 ? lib.sendHeartbeatAsync(msg) : lib.sendMessageAsync(msg);
+        reply.thenAccept(re -> {
+            try {
+                // commit right away when this ack moved the majority
+                if (onAppendEntriesReply(serverId, args, round, sent, re))
+                    commitEntry();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
 
-                // leader has more updated log
-                // get all the entires after server's next index to update server
-                if(this.state.getLog().lastEntryIndex() >= nextIndex.get(serverId)) {
-                    entries = state.getLog().getEntryFrom(nextIndex.get(serverId));
-                }
+    // apply the reply to one batch, re is null when the rpc failed
+    // return true when the ack moved the majority past commitIndex
+    private boolean onAppendEntriesReply(int serverId, AppendEntriesArg args, long round, long sent, Message re) throws IOException {
+        AppendEntriesReply res = re == null ? null : (AppendEntriesReply) MessageCodec.decode(re.getBody());
 
-                // be careful with the corner case
-                // what if nextIndex is 0?
-                int prevLogIndex = Math.max(nextIndex.get(serverId)-1, 0);
-                int prevLogTerm = state.getLog().getEntry(prevLogIndex) == null ? 1 : state.getLog().getEntry(prevLogIndex).getTerm();
+        // res has higher term, give up as leader
+        if (res != null && res.getTerm() > state.getCurrentTerm()) {
+            synchronized(this) {
+                if (res.getTerm() > state.getCurrentTerm())
+                    toFollower(res.getTerm(), serverId);
+            }
+            return false;
+        }
 
-                // System.err.println("Append Entries Request, prevlogIndex: " + prevLogIndex + " prevLogTerm: " + prevLogTerm);
-                AppendEntriesArg args = new AppendEntriesArg(this.state.getCurrentTerm(),
-                        this.id, prevLogIndex, prevLogTerm,
-                        entries, commitIndex);
+        // any answer in our term, even a reject, acknowledges us as the leader
+        if (res != null && res.getTerm() == args.getTerm())
+            onReadAck(serverId, args.getTerm(), round, sent);
 
+        Progress p = progress[serverId];
+        boolean committable = false;
+        synchronized(p) {
+            // we stepped down or moved on to a new term while the rpc was in flight
+            if (type != Types.LEADER || p.term != args.getTerm()) {
+                return false;
+            }
 
-                Message msg = new Message(MessageType.AppendEntriesArg, id, serverId, SerializationUtils.toByteArray(args));
-                Message re = lib.sendMessage(msg);
+            p.inflight--;
+            p.inflightBytes -= appendBytes(args);
+            int entries = args.getEntryCount();
 
+            if (res == null) {
+                // no response, resend this batch and everything after it once the
+                // follower answers a probe again, rather than a whole window per round
+                p.nextIndex = Math.min(p.nextIndex, args.getPrevLogIndex() + 1);
+                p.probing = true;
+                return false;
+            }
 
-                if (re == null) {
-                    // no response, return.
-                    return false;
+            if (res.isSuccess()) {
+                // the follower now matches everything this request covered,
+                // replies may arrive out of order so never move backwards
+                committable = matchIndex.advance(serverId, args.getPrevLogIndex() + entries) > commitIndex;
+                p.nextIndex = Math.max(p.nextIndex, matchIndex.get(serverId) + 1);
+                p.probing = false;
+            } else if (args.getPrevLogIndex() <= matchIndex.get(serverId)) {
+                // a reject for a point we already know matches is a stale reordered reply
+                // cannot append since we cannot rollback commits
+                // System.err.println("Cannot append over committed entries!");
+                return false;
+            } else {
+                // fail because of log inconsistency, then roll nextIndex back
+                // to just before this batch, or further using the follower's hint,
+                // and probe without entries until a probe succeeds
+                // System.err.println("Decrease next index and retry");
+                int decreasedIndex = Math.min(p.nextIndex, args.getPrevLogIndex());
+                if (res.getConflictIndex() > 0) {
+                    // jump to the follower's log end, or past the conflicting term:
+                    // right after our last entry of that term if we have one, as the
+                    // logs match up to there, otherwise to where the follower's run starts
+                    int hint = res.getConflictIndex();
+                    if (res.getConflictTerm() > 0) {
+                        int last = state.getLog().lastIndexOfTerm(res.getConflictTerm(), args.getPrevLogIndex() - 1);
+                        if (last > 0)
+                            hint = last + 1;
+                    }
+                    decreasedIndex = Math.min(decreasedIndex, hint);
                 }
+                // nothing past the follower's log end can match
+                if (res.getLastIndex() >= 0)
+                    decreasedIndex = Math.min(decreasedIndex, res.getLastIndex() + 1);
+                decreasedIndex = Math.min(decreasedIndex, state.getLog().lastEntryIndex() + 1);
+                p.nextIndex = Math.max(decreasedIndex, Math.max(matchIndex.get(serverId) + 1, 1));
+                p.probing = true;
+                // System.err.println("Index decreased to: " + p.nextIndex);
+            }
+        }
 
-                AppendEntriesReply res = (AppendEntriesReply) SerializationUtils.toObject(re.getBody());
-
-                // res has higher term, give up as leader
-                if(res.getTerm() > state.getCurrentTerm()) {
+        if (serverId == transferee)
+            notifyTransfer();
 
-                    toFollower(res.getTerm(), serverId);
-                    return false;
+        // keep the pipeline full, or retry from the lowered nextIndex
+        replicateTo(serverId, false);
+        return committable;
+    }
 
-                } else {
-                    if(res.isSuccess()) {
-
-                        if (entries == null || entries.size() == 0) {
-                            nextIndex.set(serverId,  Math.max(state.getLog().lastEntryIndex() + 1, 1));
-                        } else {
-                            // match last entry index at leader
-                            matchIndex.set(serverId, state.getLog().lastEntryIndex());
-                            nextIndex.set(serverId, matchIndex.get(serverId) + 1);
-                        }
+    // send the snapshot chunk by chunk, each chunk goes out when the previous one is acked
+    // on success the follower continues with the entries after the snapshot
+    private void sendSnapshotChunk(int serverId, Snapshot snapshot, int term, int offset) {
+        byte[] data = snapshot.getData();
+        int len = Math.min(snapshotChunkSize, data.length - offset);
+        InstallSnapshotArgs args = new InstallSnapshotArgs(term, id, snapshot.getLastIncludedIndex(),
+                snapshot.getLastIncludedTerm(), offset, Arrays.copyOfRange(data, offset, offset + len),
+                offset + len == data.length);
+
+        Message msg = new Message(MessageType.InstallSnapshotArgs, id, serverId, MessageCodec.encode(args));
+        lib.sendMessageAsync(msg).thenAccept(re -> onSnapshotReply(serverId, snapshot, args, re));
+    }
 
-                        return true;
-                    } else {
-                        // fail because of log inconsistency, then decrement nextIndex and retry
-                        // System.err.println("Decrease next index and retry");
-                        if (nextIndex.get(serverId) > state.getLog().lastEntryIndex()+1) {
-                            int decreasedIndex = Math.max(state.getLog().lastEntryIndex() + 1, 1);
-                            nextIndex.set(serverId, decreasedIndex);
-
-                            // System.err.println("Index decreased to: " + nextIndex.get(serverId));
-                        } else if (nextIndex.get(serverId) > matchIndex.get(serverId)) {
-                            // cannot go back more than commitIndex
-                            nextIndex.set(serverId, nextIndex.get(serverId) - 1);
-
-                            // System.err.println("Index decreased to: " + nextIndex.get(serverId));
-                        } else if (nextIndex.get(serverId) <= matchIndex.get(serverId)) {
-
-                            // cannot append since we cannot rollback commits
-                            // System.err.println("Cannot append over committed entries!");
-                            return false;
+    // handle the ack of one chunk, then send the next one or end the transfer
+    private void onSnapshotReply(int serverId, Snapshot snapshot, InstallSnapshotArgs args, Message re) {
+        boolean more = false;
+        boolean installed = false;
+        try {
+            // no response, start over on the next heartbeat
+            if (re != null) {
+                InstallSnapshotReply res = (InstallSnapshotReply) MessageCodec.decode(re.getBody());
+
+                if (res.getTerm() > state.getCurrentTerm()) {
+                    synchronized(this) {
+                        if (res.getTerm() > state.getCurrentTerm())
+                            toFollower(res.getTerm(), serverId);
+                    }
+                } else if (res.isSuccess()) {
+                    Progress p = progress[serverId];
+                    synchronized(p) {
+                        if (type == Types.LEADER && p.term == args.getTerm()) {
+                            if (!args.isDone()) {
+                                more = true;
+                            } else {
+                                int match = snapshot.getLastIncludedIndex();
+                                matchIndex.advance(serverId, match);
+                                p.nextIndex = Math.max(p.nextIndex, match + 1);
+                                p.probing = false;
+                                installed = true;
+                            }
                         }
                     }
                 }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (more) {
+            sendSnapshotChunk(serverId, snapshot, args.getTerm(), args.getOffset() + args.getData().length);
+            return;
+        }
+
+        synchronized(progress[serverId]) {
+            progress[serverId].installingSnapshot = false;
+        }
+
+        if (installed) {
+            if (serverId == transferee)
+                notifyTransfer();
+            try {
+                commitEntry();
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+            replicateTo(serverId, false);
+        }
+    }
+
+    // receive one snapshot chunk from the leader
+    // the last chunk replaces our log prefix and the state machine state
+    public InstallSnapshotReply installSnapshot(InstallSnapshotArgs args) {
+
+        synchronized(this) {
+            // has stale term
+            if (args.getTerm() < state.getCurrentTerm()) {
+                return new InstallSnapshotReply(state.getCurrentTerm(), false);
+            }
+
+            if ((args.getTerm() > state.getCurrentTerm()) ||
+                (getType() == Types.CANDIDATE && args.getTerm() == state.getCurrentTerm())) {
+                this.toFollower(args.getTerm(), args.getLeaderId());
+            }
+            if (args.getLeaderId() != getLeaderId()) {
+                setLeaderId(args.getLeaderId());
+            }
+            resetElectionTimeout();
+            lastLeaderContact = System.nanoTime();
+        }
+
+        synchronized(logLock) {
+            // the term moved on since it was checked, this leader is stale
+            if (args.getTerm() != state.getCurrentTerm()) {
+                return new InstallSnapshotReply(state.getCurrentTerm(), false);
+            }
+
+            if (args.getOffset() == 0) {
+                pendingSnapshot = new ByteArrayOutputStream();
+                pendingSnapshotIndex = args.getLastIncludedIndex();
+            } else if (pendingSnapshot == null || pendingSnapshotIndex != args.getLastIncludedIndex()
+                    || pendingSnapshot.size() != args.getOffset()) {
+                // not the chunk we expect next, the leader restarts the transfer
+                return new InstallSnapshotReply(state.getCurrentTerm(), false);
+            }
+            pendingSnapshot.write(args.getData(), 0, args.getData().length);
 
+            if (!args.isDone()) {
+                return new InstallSnapshotReply(state.getCurrentTerm(), true);
             }
+
+            byte[] data = pendingSnapshot.toByteArray();
+            pendingSnapshot = null;
+
+            // we already committed everything the snapshot covers
+            int index = args.getLastIncludedIndex();
+            if (index <= commitIndex) {
+                return new InstallSnapshotReply(state.getCurrentTerm(), true);
+            }
+
+            // the applier hands the snapshot to the state machine in place of the entries
+            state.setSnapshot(new Snapshot(index, args.getLastIncludedTerm(), data));
+            state.getLog().installSnapshot(index, args.getLastIncludedTerm());
+            commitIndex = index;
+            state.getLog().commitTo(commitIndex);
         }
 
-        return false;
+        applyCommitted();
+        return new InstallSnapshotReply(state.getCurrentTerm(), true);
     }
 
     // append log entires to peers and commit if majority accepts
+    // commit happens in the reply callbacks as the acks come back
 
     public boolean appendEntriesToPeersAndCommit() {
         // System.err.println("Appending entries to peers");
@@ -493,130 +1102,521 @@ public class RaftNode implements MessageHandling {
         // System.err.println("\n Checking log entry of node " + id + " \n");
         // state.getLog().dumpEntries();
 
-        resetHeartbeatTimeout();
-        int count = 1;
-        for(int i = 0; i < num_peers; i++) {
-            if(i == id) continue;
-            try {
-                if (sendAppendEntriesRequest(i))
-                    count++;
-            } catch (Exception e) {
-                e.printStackTrace();
+        broadcastTo();
+
+        return true;
+    }
+
+    // move the commit index to what a majority has replicated, then apply
+    // and let the followers know
+    public boolean commitEntry() throws RemoteException {
+        // System.err.println("Commiting entries");
+
+        synchronized(logLock) {
+            if(type != Types.LEADER) return false;
+
+            // commit till the majority of match index that is larger than commitIndex
+            // the leader counts itself only for entries it has made durable
+            synchronized(progress[id]) {
+                matchIndex.update(id, state.getDurableIndex());
             }
+            int newCommitIndex = matchIndex.quorumIndex();
+
+            // System.err.println("oldCommitIndex: " + commitIndex + " newCommitIndex: " + newCommitIndex);
+            // System.err.println("lastEntry: " + state.getLog().lastEntryIndex());
+
+            // dont commit if new commit index is smaller, or when the term is different
+            if (commitIndex >= newCommitIndex || state.getLog().getTermAtIndex(newCommitIndex) != state.getCurrentTerm()) {
+                // System.err.println("Cannot commit to local");
+                return false;
+            }
+
+            commitIndex = newCommitIndex;
+            state.getLog().commitTo(commitIndex);
         }
-        resetHeartbeatTimeout();
 
+        applyCommitted();
+
+        // need to send again to make peers commit
+        broadcastTo();
 
         return true;
     }
 
-    public synchronized boolean commitEntry() throws RemoteException {
-        // System.err.println("Commiting entries");
+    // commitIndex moved, wake the applier, or have the host's pool run it
+    public void applyCommitted() {
+        if (applyExecutor != null) {
+            if (lastApplied < commitIndex && applyScheduled.compareAndSet(false, true))
+                applyExecutor.execute(this::drainApplier);
+            return;
+        }
+        synchronized(applyLock) {
+            applyLock.notify();
+        }
+    }
 
-        if(type != Types.LEADER) return false;
+    private void runApplier() {
+        while (true) {
+            try {
+                synchronized(applyLock) {
+                    while (lastApplied >= commitIndex)
+                        applyLock.wait();
+                }
 
-        // commit till the majority of match index that is larger than commitIndex
-        ArrayList<Integer> copy = new ArrayList<>(matchIndex);
-        Collections.sort(copy);
+                if (!applyBatch()) {
+                    // the same entries are delivered again
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
 
-        // System.err.println("\n Checking match index \n ");
-        // for (int i = 0; i < matchIndex.size(); i++)
-        //     // System.err.print(matchIndex.get(i) + " ");
-        // System.err.println(" \n ");
+    // the applier as a task of the host's pool, it gives up on a failed
+    // delivery until the commit index moves again
+    private void drainApplier() {
+        try {
+            while (lastApplied < commitIndex) {
+                if (!applyBatch())
+                    return;
+            }
+        } finally {
+            applyScheduled.set(false);
+        }
+        // commitIndex may have moved after the check
+        applyCommitted();
+    }
 
+    // hand everything committed but not yet applied to the state machine, in order,
+    // up to maxApplyBatch entries per call
+    // entries covered by an installed snapshot are replaced by the snapshot itself
+    // return false when the state machine could not be reached
+    private boolean applyBatch() {
+        try {
+            List<ApplyMsg> batch = new ArrayList<>();
+            int applied = lastApplied;
+            int target = commitIndex;
+            while (applied < target && batch.size() < maxApplyBatch) {
+                int index = applied + 1;
+                LogEntries entry = index <= state.getLog().getSnapshotIndex() ? null : state.getLog().getEntry(index);
+                if (entry != null) {
+                    batch.add(new ApplyMsg(id, index, entry.getCommand(), false, null));
+                    applied = index;
+                    continue;
+                }
 
-        int matchIndexSize = matchIndex.size();
+                // an installed snapshot took the entry's place, possibly while we read it,
+                // it goes in a batch of its own after the entries before it
+                if (index <= state.getLog().getSnapshotIndex() && batch.isEmpty()) {
+                    Snapshot snapshot = state.getSnapshot();
+                    batch.add(new ApplyMsg(id, snapshot.getLastIncludedIndex(), 0, true, snapshot.getData()));
+                    applied = snapshot.getLastIncludedIndex();
+                }
+                break;
+            }
 
-        int pos = matchIndexSize % 2 == 0 ? matchIndexSize / 2 - 1 : matchIndexSize / 2;
+            if (batch.isEmpty())
+                return true;
 
-        // skip one because leader does not have match index
-        int newCommitIndex = copy.get(pos+1);
+            try {
+                lib.applyChannelBatch(batch);
+            } catch (RemoteException r) {
+                r.printStackTrace();
+                return false;
+            }
 
-        // System.err.println("oldCommitIndex: " + commitIndex + " newCommitIndex: " + newCommitIndex);
-        // System.err.println("lastEntry: " + state.getLog().lastEntryIndex());
+            // System.err.println("\n Apply done \n");
+            // System.err.println("\n Checking log entry of node " + id + " \n");
+            // state.getLog().dumpEntries();
 
-        // dont commit if new commit index is smaller, or when the term is different
-        if (commitIndex >= newCommitIndex || state.getLog().getEntry(newCommitIndex).getTerm() != state.getCurrentTerm()) {
-            // System.err.println("Cannot commit to local");
-            return false;
+            lastApplied = applied;
+            synchronized(readLock) {
+                readLock.notifyAll();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
+        return true;
+    }
 
-        applyTillNewCommitIndex(commitIndex, newCommitIndex);
+    // serve a linearizable read without appending it to the log:
+    // record the commit index, wait for a majority to ack a heartbeat round
+    // started after that, then for the commit index to be applied;
+    // in lease mode, while the lease holds, there is no round to wait for
+    @Override
+    public ReadReply read() {
+        int term, readIndex;
+        synchronized(logLock) {
+            term = state.getCurrentTerm();
+            if (!leads(term))
+                return new ReadReply(-1, term, false);
+
+            // until it commits an entry of its own term the leader may not know
+            // everything committed before it, the read can be retried after a write
+            readIndex = commitIndex;
+            if (state.getLog().getTermAtIndex(readIndex) != term)
+                return new ReadReply(-1, term, true);
+        }
 
-        // need to send again to make peers commit
-        resetHeartbeatTimeout();
-        for(int i = 0; i < num_peers; i++) {
-            if(i == id) continue;
-            try {
-                sendAppendEntriesRequest(i);
-            } catch (Exception e) {
-                e.printStackTrace();
+        long deadline = System.currentTimeMillis() + readTimeoutMillis;
+        long round;
+        boolean start = false;
+        synchronized(readLock) {
+            // no other leader can be elected while the lease holds
+            if (leaseReads && type == Types.LEADER && state.getCurrentTerm() == term && transferee == -1 && leaseHolds())
+                return awaitApplied(readIndex, term, deadline);
+
+            if (confirmedRound == readRound) {
+                round = ++readRound;
+                start = true;
+            } else {
+                // a round is already out, it may have been sent before this read arrived
+                round = readRound + 1;
+                nextRoundWanted = true;
             }
         }
-        resetHeartbeatTimeout();
+        if (start)
+            sendReadRound();
 
-        return true;
+        try {
+            synchronized(readLock) {
+                while (confirmedRound < round) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (type != Types.LEADER || state.getCurrentTerm() != term || left <= 0)
+                        return new ReadReply(-1, state.getCurrentTerm(), false);
+                    readLock.wait(left);
+                }
+                // acks from a later term do not show that we led when the read arrived
+                if (state.getCurrentTerm() != term)
+                    return new ReadReply(-1, state.getCurrentTerm(), false);
+
+                return awaitApplied(readIndex, term, deadline);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ReadReply(-1, term, false);
+        }
     }
 
-    public synchronized void applyTillNewCommitIndex(int oldCommitIndex, int newCommitIndex) throws RemoteException {
-        // System.err.println("Trying to apply till new commit index");
-        for(int i = oldCommitIndex + 1; i <= newCommitIndex; i++) {
-            ApplyMsg msg = new ApplyMsg(id, i, state.getLog().getEntry(i).getCommand(), false, null);
-            lib.applyChannel(msg);
+    // the read at readIndex is confirmed, return once it has been applied
+    // the caller holds readLock
+    private ReadReply awaitApplied(int readIndex, int term, long deadline) {
+        try {
+            while (lastApplied < readIndex) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return new ReadReply(-1, term, type == Types.LEADER);
+                readLock.wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ReadReply(-1, term, false);
         }
+        return new ReadReply(readIndex, term, true);
+    }
 
-        // System.err.println("\n Apply done \n");
-        // System.err.println("\n Checking log entry of node " + id + " \n");
-        // state.getLog().dumpEntries();
+    // whether a majority, the leader included, acked AppendEntries sent less than leaseMillis ago
+    // the caller holds readLock
+    private boolean leaseHolds() {
+        long since = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        int acks = 1;
+        for (int i = 0; i < num_peers; i++) {
+            if (i != id && leaseAcks[i] != NEVER && leaseAcks[i] - since > 0) acks++;
+        }
+        return acks >= num_peers / 2 + 1;
+    }
 
-        commitIndex = newCommitIndex;
-        lastApplied = commitIndex;
+    private long confirmedRound() {
+        synchronized(readLock) {
+            return confirmedRound;
+        }
     }
 
-    public synchronized boolean isCommittable(int index) {
-        int majority = 1 + num_peers/2;
-        int cnt = 0;
+    // send an empty AppendEntries tagged with the current read round to every follower,
+    // at the index it is known to match so that it has no effect on its log
+    private void sendReadRound() {
+        long round = readRound;
+        // the leader acks its own round, which is all a single node needs
+        onReadAck(id, state.getCurrentTerm(), round, System.nanoTime());
 
-        for(int i = 0; i < num_peers; i++) {
-            if(matchIndex.get(i) >= index) {
-                cnt++;
+        for (int i = 0; i < num_peers; i++) {
+            if (i == id) continue;
+            AppendEntriesArg args;
+            Progress p = progress[i];
+            synchronized(logLock) {
+                synchronized(p) {
+                    if (type != Types.LEADER || state.getCurrentTerm() != p.term)
+                        return;
+                    int prev = Math.max(matchIndex.get(i), state.getLog().getSnapshotIndex());
+                    args = new AppendEntriesArg(p.term, id, prev, state.getLog().getTermAtIndex(prev), (byte[]) null, commitIndex);
+                }
+            }
+
+            int serverId = i;
+            Message msg = new Message(MessageType.AppendEntriesArg, id, serverId, MessageCodec.encode(args));
+            long sent = System.nanoTime();
+            lib.sendMessageAsync(msg).thenAccept(re -> {
+                try {
+                    if (re == null)
+                        return;
+                    AppendEntriesReply res = (AppendEntriesReply) MessageCodec.decode(re.getBody());
+                    if (res.getTerm() > state.getCurrentTerm()) {
+                        synchronized(this) {
+                            if (res.getTerm() > state.getCurrentTerm())
+                                toFollower(res.getTerm(), serverId);
+                        }
+                    } else if (res.getTerm() == args.getTerm()) {
+                        onReadAck(serverId, args.getTerm(), round, sent);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // a node answered an AppendEntries of term sent at time sent during round,
+    // which extends the lease, confirm the outstanding round once a majority
+    // has answered, then start the next one if wanted
+    private void onReadAck(int serverId, int term, long round, long sent) {
+        synchronized(readLock) {
+            if (term == state.getCurrentTerm() && (leaseAcks[serverId] == NEVER || sent - leaseAcks[serverId] > 0))
+                leaseAcks[serverId] = sent;
+            if (round > readAcks[serverId])
+                readAcks[serverId] = round;
+            if (confirmedRound == readRound)
+                return;
+
+            int acks = 1;
+            for (int i = 0; i < num_peers; i++) {
+                if (i != id && readAcks[i] >= readRound) acks++;
             }
-            if(cnt >= majority) return true;
+            if (acks < num_peers / 2 + 1)
+                return;
+
+            confirmedRound = readRound;
+            readLock.notifyAll();
+            if (!nextRoundWanted)
+                return;
+            nextRoundWanted = false;
+            readRound++;
         }
-        return cnt >= majority;
+        sendReadRound();
+    }
+
+    public boolean isCommittable(int index) {
+        return matchIndex.hasQuorum(index);
     }
 
     // start called at leader to add a new operation to the log
+    // concurrent calls are grouped by the proposal batcher and appended together
 
     @Override
     public StartReply start(int command) {
-        int term = this.state.getCurrentTerm();
-        int index = -1;
-        boolean isLeader = getType() == Types.LEADER;
+        try {
+            return proposals.propose(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new StartReply(-1, this.state.getCurrentTerm(), false);
+        }
+    }
+
+    // append one batch of proposals, then replicate the whole batch in one round
+    // the leader's own fsync runs outside the monitor, in parallel with replication,
+    // and concurrent batches share it
+    private StartReply[] appendBatch(int[] commands, int count) {
+        StartReply[] replies = appendToLog(commands, count);
+        if (state.isDurable()) {
+            try {
+                state.sync();
+                // acks may have arrived before our own copy was durable
+                commitEntry();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return replies;
+    }
 
-        // not a leader, cannot start adding log
-        if(!isLeader) {
-            return new StartReply(index, term, false);
+    private StartReply[] appendToLog(int[] commands, int count) {
+        StartReply[] replies = new StartReply[count];
+        boolean isLeader;
+
+        synchronized(logLock) {
+            // a leader stepping down right after this check only leaves entries
+            // of its term behind, the next leader overwrites them;
+            // a leader handing over its leadership takes no more entries
+            int term = this.state.getCurrentTerm();
+            isLeader = leads(term) && transferee == -1;
+            int rewritten = appendToLog(commands, count, term, isLeader, replies);
+            if (isLeader) {
+                // an in-memory log counts right away, a durable one once synced;
+                // an entry given a new term counts once the next sync, in commitEntry
+                synchronized(progress[id]) {
+                    matchIndex.update(id, Math.min(state.getDurableIndex(), rewritten - 1));
+                }
+            }
         }
 
-        // check current log, starting from the last committed index
-        // if this command already exists, just reply true
-        for(int i = getCommitIndex() + 1; i <= this.state.getLog().lastEntryIndex(); i++) {
-            if (state.getLog().getEntry(i).getCommand() == command){
-                state.getLog().getEntry(i).setTerm(term);
+        if (isLeader)
+            broadcastTo();
+
+        return replies;
+    }
+
+    // the caller holds logLock; returns the lowest index whose term was
+    // rewritten, Integer.MAX_VALUE when none was
+    private int appendToLog(int[] commands, int count, int term, boolean isLeader, StartReply[] replies) {
+        int rewritten = Integer.MAX_VALUE;
+        for (int c = 0; c < count; c++) {
+            int command = commands[c];
+            int index = -1;
+
+            // not a leader, cannot start adding log
+            if(!isLeader) {
+                replies[c] = new StartReply(index, term, false);
+                continue;
+            }
+
+            // if this command is already in the uncommitted part of the log, just reply true
+            // the log drops entries from that index as soon as commitIndex passes them,
+            // applied or not, so a committed entry never has its term rewritten here
+            index = state.getLog().findUncommitted(command);
+            if (index <= commitIndex)
+                index = -1;
+            if (index != -1) {
+                state.getLog().setTermAtIndex(index, term);
+                rewritten = Math.min(rewritten, index);
+                // followers hold the entry under its old term, so they no longer
+                // match from there on and must be sent it again
+                for (int i = 0; i < num_peers; i++) {
+                    Progress p = progress[i];
+                    synchronized(p) {
+                        if (matchIndex.get(i) >= index) matchIndex.update(i, index - 1);
+                        if (p.nextIndex > index) p.nextIndex = index;
+                    }
+                }
                 // System.err.println("Entry exists, return true");
-                return new StartReply(i, term, true);
             }
+
+            if (index == -1) {
+                // System.err.println("Entry does not exist, appending");
+
+                // append entry since it doesn't exist
+                index = this.state.getLog().lastEntryIndex() + 1;
+                LogEntries entry = new LogEntries(term, index, command);
+                this.state.getLog().append(entry);
+            }
+
+            replies[c] = new StartReply(index, term, true);
+        }
+        return rewritten;
+    }
+
+    // hand the leadership to target: stop taking entries, bring target up to date
+    // and send it TimeoutNow so that it runs for leader at once, instead of the
+    // cluster waiting out an election timeout after this node goes away;
+    // catching up and the election each get an election timeout, after which
+    // the transfer is abandoned and this node takes entries again
+    @Override
+    public boolean transferLeadership(int target) {
+        int term;
+        synchronized(this) {
+            if (type != Types.LEADER || target < 0 || target >= num_peers || target == id || transferee != -1)
+                return false;
+            term = state.getCurrentTerm();
+            transferee = target;
+        }
+
+        try {
+            // appendToLog checks transferee under logLock, so the log ends here
+            int last;
+            synchronized(logLock) {
+                last = state.getLog().lastEntryIndex();
+            }
+
+            replicateTo(target, true);
+            long deadline = System.currentTimeMillis() + T;
+            synchronized(transferLock) {
+                while (matchIndex.get(target) < last) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (type != Types.LEADER || state.getCurrentTerm() != term || left <= 0)
+                        return false;
+                    transferLock.wait(left);
+                }
+            }
+
+            Message msg = new Message(MessageType.TimeoutNow, id, target, MessageCodec.encode(new TimeoutNowArgs(term, id)));
+            Message re = lib.sendMessageAsync(msg).join();
+            if (re == null)
+                return false;
+            TimeoutNowReply reply = (TimeoutNowReply) MessageCodec.decode(re.getBody());
+            if (reply.getTerm() > state.getCurrentTerm()) {
+                synchronized(this) {
+                    if (reply.getTerm() > state.getCurrentTerm())
+                        toFollower(reply.getTerm(), -1);
+                }
+            }
+
+            // the target's vote request moves this node to the new term as a follower
+            deadline = System.currentTimeMillis() + T;
+            synchronized(transferLock) {
+                while (type == Types.LEADER && state.getCurrentTerm() == term) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (!reply.isSuccess() || left <= 0)
+                        return false;
+                    transferLock.wait(left);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            transferee = -1;
+        }
+    }
+
+    private void notifyTransfer() {
+        synchronized(transferLock) {
+            transferLock.notifyAll();
+        }
+    }
+
+    // our leader brought us up to date and hands over to us, run for leader now,
+    // without a pre-vote, which the peers still hearing from the leader would refuse
+    public TimeoutNowReply timeoutNow(TimeoutNowArgs args) {
+        int term;
+        synchronized(this) {
+            term = state.getCurrentTerm();
+            if (args.getTerm() != term || type != Types.FOLLOWER)
+                return new TimeoutNowReply(term, false);
         }
 
-        // System.err.println("Entry does not exist, appending");
+        try {
+            startElection(term, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new TimeoutNowReply(term, false);
+        }
+        return new TimeoutNowReply(term, true);
+    }
 
-        // append entry since it doesn't exist
-        index = this.state.getLog().lastEntryIndex() + 1;
-        LogEntries entry = new LogEntries(term, index, command);
-        this.state.getLog().append(entry);
+    // the state machine's snapshot covers everything up to index,
+    // the log before it is no longer needed
+    @Override
+    public void snapshot(int index, byte[] snapshot) {
+        synchronized(logLock) {
+            if (index > lastApplied || index <= state.getLog().getSnapshotIndex())
+                return;
 
-        return new StartReply(state.getLog().lastEntryIndex(), term, true);
+            state.setSnapshot(new Snapshot(index, state.getLog().getTermAtIndex(index), snapshot));
+            state.getLog().compact(index);
+        }
     }
 
     @Override
@@ -631,7 +1631,10 @@ public class RaftNode implements MessageHandling {
 
         if (message == null || message.getType() == null || message.getBody() == null
                 || message.getDest() != id || message.getType() == MessageType.RequestVoteReply
-                || message.getType() == MessageType.AppendEntriesReply) {
+                || message.getType() == MessageType.AppendEntriesReply
+                || message.getType() == MessageType.InstallSnapshotReply
+                || message.getType() == MessageType.PreVoteReply
+                || message.getType() == MessageType.TimeoutNowReply) {
 
             return null;
         }
@@ -639,7 +1642,7 @@ public class RaftNode implements MessageHandling {
         if (message.getType() == MessageType.RequestVoteArgs) {
             RequestVoteArgs cur = null;
             try {
-                cur = (RequestVoteArgs) SerializationUtils.toObject(message.getBody());
+                cur = (RequestVoteArgs) MessageCodec.decode(message.getBody());
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -648,7 +1651,7 @@ public class RaftNode implements MessageHandling {
 
             byte[] data = null;
             try {
-                 data = SerializationUtils.toByteArray(res);
+                 data = MessageCodec.encode(res);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -656,21 +1659,51 @@ public class RaftNode implements MessageHandling {
             Message reply = new Message(MessageType.RequestVoteReply, id, message.getSrc(), data);
 
             return reply;
+        } else if (message.getType() == MessageType.PreVoteArgs) {
+            // a pre-vote carries the same arguments and reply as a vote
+            RequestVoteArgs cur = null;
+            try {
+                cur = (RequestVoteArgs) MessageCodec.decode(message.getBody());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            RequestVoteReply res = this.preVote(cur);
+
+            byte[] data = null;
+            try {
+                 data = MessageCodec.encode(res);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            return new Message(MessageType.PreVoteReply, id, message.getSrc(), data);
         } else if (message.getType() == MessageType.AppendEntriesArg) {
 
             AppendEntriesArg aa = null;
             try {
-                aa = (AppendEntriesArg) SerializationUtils.toObject(message.getBody());
+                aa = (AppendEntriesArg) MessageCodec.decode(message.getBody());
             } catch (Exception e) {
                 e.printStackTrace();
             }
 
             AppendEntriesReply ar = this.AppendEntries(aa);
 
+            // entries must be on disk before we ack them, syncing outside the
+            // monitor lets concurrent appends share one fsync
+            if (ar.isSuccess() && aa.getEntryCount() != 0) {
+                try {
+                    state.sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    ar = new AppendEntriesReply(ar.getTerm(), false);
+                }
+            }
+
             byte[] data = null;
 
             try {
-                data = SerializationUtils.toByteArray(ar);
+                data = MessageCodec.encode(ar);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -678,6 +1711,44 @@ public class RaftNode implements MessageHandling {
             Message reply = new Message(MessageType.AppendEntriesReply, id, message.getSrc(), data);
 
             return reply;
+        } else if (message.getType() == MessageType.InstallSnapshotArgs) {
+
+            InstallSnapshotArgs sa = null;
+            try {
+                sa = (InstallSnapshotArgs) MessageCodec.decode(message.getBody());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            InstallSnapshotReply sr = this.installSnapshot(sa);
+
+            byte[] data = null;
+            try {
+                data = MessageCodec.encode(sr);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            return new Message(MessageType.InstallSnapshotReply, id, message.getSrc(), data);
+        } else if (message.getType() == MessageType.TimeoutNow) {
+
+            TimeoutNowArgs ta = null;
+            try {
+                ta = (TimeoutNowArgs) MessageCodec.decode(message.getBody());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            TimeoutNowReply tr = this.timeoutNow(ta);
+
+            byte[] data = null;
+            try {
+                data = MessageCodec.encode(tr);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            return new Message(MessageType.TimeoutNowReply, id, message.getSrc(), data);
         } else {
             return null;
         }
@@ -686,8 +1757,51 @@ public class RaftNode implements MessageHandling {
 
     //main function
     public static void main(String args[]) throws Exception {
-        if (args.length != 3) throw new Exception("Need 2 args: <port> <id> <num_peers>");
+        if (args.length < 3 || args.length > 9)
+            throw new Exception("Need 3 args: <port> <id> <num_peers> [data_dir] [-peers=host:port,...]"
+                    + " [-append-limits=max_entries,max_bytes,max_inflight_bytes] [-lease-reads=drift_millis]"
+                    + " [-inflight-appends=max_batches] [-proposal-batch=window_millis,max_batch]");
+
+        String dataDir = null;
+        InetSocketAddress[] peers = null;
+        int[] appendLimits = null;
+        long leaseDrift = -1;
+        Integer inflightAppends = null;
+        long[] proposalBatch = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith("-peers=")) {
+                peers = NioTransport.parseAddresses(args[i].substring("-peers=".length()));
+            } else if (args[i].startsWith("-lease-reads=")) {
+                leaseDrift = Long.parseLong(args[i].substring("-lease-reads=".length()));
+            } else if (args[i].startsWith("-inflight-appends=")) {
+                inflightAppends = Integer.parseInt(args[i].substring("-inflight-appends=".length()));
+            } else if (args[i].startsWith("-proposal-batch=")) {
+                proposalBatch = Arrays.stream(args[i].substring("-proposal-batch=".length()).split(","))
+                        .mapToLong(Long::parseLong).toArray();
+                if (proposalBatch.length != 2)
+                    throw new Exception("-proposal-batch needs 2 values: window_millis,max_batch");
+            } else if (args[i].startsWith("-append-limits=")) {
+                appendLimits = Arrays.stream(args[i].substring("-append-limits=".length()).split(","))
+                        .mapToInt(Integer::parseInt).toArray();
+                if (appendLimits.length != 3)
+                    throw new Exception("-append-limits needs 3 values: max_entries,max_bytes,max_inflight_bytes");
+            } else {
+                dataDir = args[i];
+            }
+        }
         //new usernode
-        RaftNode UN = new RaftNode(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        RaftNode UN = new RaftNode(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                dataDir, peers);
+        if (appendLimits != null)
+            UN.setAppendLimits(appendLimits[0], appendLimits[1], appendLimits[2]);
+        if (inflightAppends != null)
+            UN.setMaxInflightAppends(inflightAppends);
+        if (proposalBatch != null)
+            UN.setProposalBatching(proposalBatch[0], Math.toIntExact(proposalBatch[1]));
+        if (leaseDrift >= 0)
+            UN.setLeaseReads(true, leaseDrift);
+
+        // the node runs on timer and transport threads, which are all daemons
+        Thread.currentThread().join();
     }
 }
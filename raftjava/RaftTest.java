@@ -1,6 +1,14 @@
 import lib.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class RaftTest {
 
@@ -514,6 +522,717 @@ public class RaftTest {
     }
 
 
+    private static void TestSnapshot() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort );
+
+        System.out.println( "Testing follower catches up from a snapshot ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        cfg.startCommit(101, numServers);
+
+        // a follower misses a stretch of commands
+        int leader = cfg.checkOneLeader();
+        int behind = (leader + 1) % numServers;
+        cfg.disconnect(behind);
+
+        for(i = 0; i < 30; i++) {
+            cfg.startCommit(200 + i, numServers - 1);
+        }
+
+        // the others compact their logs past what the follower has
+        for(i = 0; i < numServers; i++) {
+            if(i != behind && cfg.snapshot(i) < 2) {
+                System.err.println("Server " + i + " had nothing to snapshot");
+                cfg.cleanup();
+            }
+        }
+
+        // the follower can only catch up through InstallSnapshot
+        cfg.connect(behind);
+
+        for(i = 0; i < 5; i++) {
+            if(cfg.startCommit(300 + i, numServers) < 0) {
+                cfg.cleanup();
+            }
+        }
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    private static void TestReadIndex() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort );
+
+        System.out.println( "Testing reads through the read index ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        int index = cfg.startCommit(101, numServers);
+        int leader = cfg.checkOneLeader();
+
+        // a read covers every write that completed before it
+        ReadReply reply = cfg.read(leader);
+        if(reply == null || !reply.isLeader || reply.index < index) {
+            System.err.println("Leader read at " + (reply == null ? "null" : reply.index) + ", expected at least " + index);
+            cfg.cleanup();
+        }
+
+        // followers do not serve reads
+        reply = cfg.read((leader + 1) % numServers);
+        if(reply == null || reply.isLeader || reply.index != -1) {
+            System.err.println("Follower served a read");
+            cfg.cleanup();
+        }
+
+        // concurrent reads share their heartbeat rounds
+        int reads = 200, total1 = 0, total2 = 0;
+        for(i = 0; i < numServers; i++) {
+            total1 += cfg.rpcCount(i);
+        }
+        int[] failed = new int[1];
+        int written = index;
+        Thread[] readers = new Thread[20];
+        for(i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                for(int r = 0; r < reads / readers.length; r++) {
+                    ReadReply rr = cfg.read(leader);
+                    if(rr == null || !rr.isLeader || rr.index < written) {
+                        synchronized(failed) {
+                            failed[0]++;
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        for(Thread t : readers) {
+            t.join();
+        }
+        for(i = 0; i < numServers; i++) {
+            total2 += cfg.rpcCount(i);
+        }
+        if(failed[0] > 0) {
+            System.err.println(failed[0] + " of " + reads + " reads failed");
+            cfg.cleanup();
+        }
+        if(total2 - total1 >= reads * (numServers - 1)) {
+            System.err.println("Too many RPCs (" + (total2 - total1) + ") for " + reads + " reads");
+            cfg.cleanup();
+        }
+
+        // a new leader serves reads once it has committed in its term
+        cfg.disconnect(leader);
+        index = cfg.startCommit(102, numServers - 1);
+        int leader2 = cfg.checkOneLeader();
+        reply = cfg.read(leader2);
+        if(reply == null || !reply.isLeader || reply.index < index) {
+            System.err.println("New leader read at " + (reply == null ? "null" : reply.index) + ", expected at least " + index);
+            cfg.cleanup();
+        }
+        cfg.connect(leader);
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    private static void TestLeaseRead() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort, "-lease-reads=25" );
+
+        System.out.println( "Testing reads on a leader lease ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        int index = cfg.startCommit(101, numServers);
+        int leader = cfg.checkOneLeader();
+
+        // reads are served on the lease, with no rounds of their own
+        int reads = 100, total1 = 0, total2 = 0;
+        for(i = 0; i < numServers; i++) {
+            total1 += cfg.rpcCount(i);
+        }
+        long t0 = System.currentTimeMillis();
+        for(i = 0; i < reads; i++) {
+            ReadReply reply = cfg.read(leader);
+            if(reply == null || !reply.isLeader || reply.index < index) {
+                System.err.println("Leader read at " + (reply == null ? "null" : reply.index) + ", expected at least " + index);
+                cfg.cleanup();
+            }
+        }
+        long elapsed = System.currentTimeMillis() - t0;
+        for(i = 0; i < numServers; i++) {
+            total2 += cfg.rpcCount(i);
+        }
+        // heartbeats still go out every 150ms or so
+        if(total2 - total1 > (numServers - 1) * (elapsed / 100 + 2)) {
+            System.err.println("Too many RPCs (" + (total2 - total1) + ") for " + reads + " reads in " + elapsed + "ms");
+            cfg.cleanup();
+        }
+
+        // once cut off the leader loses its lease, a new leader takes over
+        // after the followers' election timeouts and serves reads again
+        cfg.disconnect(leader);
+        index = cfg.startCommit(102, numServers - 1);
+        int leader2 = cfg.checkOneLeader();
+        ReadReply reply = cfg.read(leader2);
+        if(reply == null || !reply.isLeader || reply.index < index) {
+            System.err.println("New leader read at " + (reply == null ? "null" : reply.index) + ", expected at least " + index);
+            cfg.cleanup();
+        }
+        cfg.connect(leader);
+
+        cfg.startCommit(103, numServers);
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    private static void TestPreVote() throws Exception {
+
+        int numServers = 3;
+
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort );
+
+        System.out.println( "Testing a rejoining follower does not disrupt the leader ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        cfg.startCommit(101, numServers);
+        int leader = cfg.checkOneLeader();
+        int term = cfg.checkTerms();
+
+        // a follower cut off for several election timeouts keeps its term,
+        // its pre-votes never reach a quorum, so once back it follows
+        // the same leader in the same term
+        int follower = (leader + 1) % numServers;
+        cfg.disconnect(follower);
+        Thread.sleep( 2 * RAFT_ELECTION_TIMEOUT );
+        cfg.connect(follower);
+        cfg.startCommit(102, numServers);
+        int leader2 = cfg.checkOneLeader();
+        int term2 = cfg.checkTerms();
+        if(leader2 != leader || term2 != term) {
+            System.err.println("Rejoining follower disrupted the leader: leader " + leader + " term " + term
+                    + " became leader " + leader2 + " term " + term2);
+            cfg.cleanup();
+        }
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    private static void TestLeaderTransfer() throws Exception {
+
+        int numServers = 3;
+
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort );
+
+        System.out.println( "Testing leadership transfer ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        cfg.startCommit(101, numServers);
+        int leader = cfg.checkOneLeader();
+        int target = (leader + 1) % numServers;
+
+        // the target takes over without anyone waiting out an election timeout
+        long t0 = System.currentTimeMillis();
+        if(!cfg.transferLeadership(leader, target)) {
+            System.err.println("Leader " + leader + " failed to transfer to " + target);
+            cfg.cleanup();
+        }
+        long elapsed = System.currentTimeMillis() - t0;
+        if(elapsed >= RAFT_ELECTION_TIMEOUT / 2) {
+            System.err.println("Transfer took " + elapsed + "ms");
+            cfg.cleanup();
+        }
+
+        int leader2 = cfg.checkOneLeader();
+        if(leader2 != target) {
+            System.err.println("Expected " + target + " to lead, but " + leader2 + " does");
+            cfg.cleanup();
+        }
+        StartReply reply = cfg.start(leader, 102);
+        if(reply == null || reply.isLeader) {
+            System.err.println("Old leader still takes entries");
+            cfg.cleanup();
+        }
+
+        // nothing committed before the transfer is lost
+        cfg.startCommit(103, numServers);
+
+        // a follower cannot hand over a leadership it does not have
+        if(cfg.transferLeadership(leader, (target + 1) % numServers)) {
+            System.err.println("Follower " + leader + " transferred leadership");
+            cfg.cleanup();
+        }
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    /* Read a crashed server's state back from its data directory, as it would on restart. */
+    private static PersistentState recoverState( Config cfg, int server ) throws Exception {
+        return new PersistentState(cfg.dataDir(server), false);
+    }
+
+    /* Leave a record that fails its crc and half of another at the end of a server's log. */
+    private static void tearLogTail( Config cfg, int server, int nextIndex ) throws Exception {
+        File[] segments = new File(cfg.dataDir(server), "log").listFiles((d, name) -> name.startsWith("segment-"));
+        java.util.Arrays.sort(segments);
+
+        ByteBuffer records = ByteBuffer.allocate(2 * LogRecords.RECORD_SIZE);
+        LogRecords.put(records, 1, nextIndex, 999);
+        records.put(8, (byte) (records.get(8) + 1));
+        LogRecords.put(records, 1, nextIndex + 1, 998);
+        try (FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true)) {
+            out.write(records.array(), 0, LogRecords.RECORD_SIZE + LogRecords.RECORD_SIZE / 2);
+        }
+    }
+
+    private static void TestPersist() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        File dataDir = Files.createTempDirectory("raft-persist").toFile();
+        Config cfg = new Config( numServers, true /* is_reliable ? */, controllerPort, dataDir );
+
+        System.out.println( "Testing recovery from the data directory after a crash ...\n" );
+
+        /* Waiting for all raft peers to start and register with Transport Layer controller. */
+        cfg.waitUntilAllRegister();
+
+        int index = 0;
+        for(i = 0; i < 5; i++) {
+            index = cfg.startCommit(101 + i, numServers);
+        }
+        int leader = cfg.checkOneLeader();
+        int term = cfg.checkTerms();
+
+        // a follower dies with a torn write at the end of its log
+        int follower = (leader + 1) % numServers;
+        cfg.crash(follower);
+        tearLogTail(cfg, follower, index + 1);
+
+        // term, vote and every committed entry come back, the broken tail does not
+        PersistentState state = recoverState(cfg, follower);
+        if(state.getCurrentTerm() != term) {
+            System.err.println("Recovered term " + state.getCurrentTerm() + ", expected " + term);
+            cfg.cleanup();
+        }
+        if(state.getVotedFor() != -1 && state.getVotedFor() != leader) {
+            System.err.println("Recovered a vote for " + state.getVotedFor() + ", but " + leader + " won the term");
+            cfg.cleanup();
+        }
+        if(state.getLog().lastEntryIndex() != index) {
+            System.err.println("Recovered log ends at " + state.getLog().lastEntryIndex() + ", expected " + index);
+            cfg.cleanup();
+        }
+        for(i = 1; i <= index; i++) {
+            LogEntries entry = state.getLog().getEntry(i);
+            if(entry == null || entry.getCommand() != cfg.nCommitted(i).cmd) {
+                System.err.println("Recovered log differs at index " + i);
+                cfg.cleanup();
+            }
+        }
+        state.close();
+
+        // the follower replays its own log, and its broken tail, when it comes back
+        tearLogTail(cfg, follower, index + 1);
+        cfg.restart(follower);
+        for(i = 0; i < 5; i++) {
+            index = cfg.startCommit(201 + i, numServers);
+        }
+
+        // the whole cluster goes down, the log survives and a new leader builds on it
+        for(i = 0; i < numServers; i++) {
+            cfg.crash(i);
+        }
+        for(i = 0; i < numServers; i++) {
+            cfg.restart(i);
+        }
+        cfg.checkOneLeader();
+        if(cfg.checkTerms() <= term) {
+            System.err.println("No new term after the restart");
+            cfg.cleanup();
+        }
+        if(cfg.startCommit(301, numServers) != index + 1) {
+            System.err.println("Entries before the restart were lost");
+            cfg.cleanup();
+        }
+
+        System.out.println( "  ... Passed\n" );
+
+        cfg.cleanup();
+    }
+
+    /* The leader among the nodes of an in-process cluster with a term above minTerm, -1 if none yet. */
+    private static int inProcessLeader( RaftNode[] nodes, boolean[] connected, int minTerm ) {
+        for( int i = 0; i < nodes.length; i++ ) {
+            GetStateReply state = nodes[i].getState();
+            if( connected[i] && state.isLeader && state.term > minTerm ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void fail( String error ) {
+        System.err.println( error );
+        System.exit( -1 );
+    }
+
+    /*
+     * Applying stalls on every node while entries keep committing. A command
+     * proposed again once it committed, here to the leader of a later term,
+     * is a new entry: the committed one is not taken for an uncommitted
+     * duplicate and keeps its term. Runs in this JVM on a LocalMessagingLayer.
+     */
+    private static void TestReProposeCommitted() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        System.out.println( "Testing a command proposed again after it committed ...\n" );
+
+        // each node's applier blocks on its second entry until the queues are drained
+        LocalMessagingLayer network = new LocalMessagingLayer();
+        Map<Integer, BlockingQueue<ApplyMsg>> applyMsgMap = new HashMap<>();
+        for(i = 0; i < numServers; i++) {
+            applyMsgMap.put(i, new ArrayBlockingQueue<>(1));
+        }
+        network.setApplyMsgMap(applyMsgMap);
+
+        RaftNode[] nodes = new RaftNode[numServers];
+        boolean[] connected = new boolean[numServers];
+        for(i = 0; i < numServers; i++) {
+            nodes[i] = new RaftNode(network, i, numServers, null);
+            connected[i] = true;
+        }
+
+        int leader = -1;
+        long deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+        while((leader = inProcessLeader(nodes, connected, 0)) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if(leader < 0) {
+            fail("Fatal : No leader found !");
+        }
+        int term = nodes[leader].getState().term;
+
+        // 102 commits everywhere but no node gets to apply it
+        nodes[leader].start(101);
+        StartReply first = nodes[leader].start(102);
+        deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT;
+        for(i = 0; i < numServers; i++) {
+            while(nodes[i].getCommitIndex() < first.index && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if(nodes[i].getCommitIndex() < first.index) {
+                fail("Server " + i + " did not commit index " + first.index);
+            }
+        }
+
+        // the client retries 102 with the next leader
+        network.disconnect(leader);
+        connected[leader] = false;
+        int leader2 = -1;
+        deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+        while((leader2 = inProcessLeader(nodes, connected, term)) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if(leader2 < 0) {
+            fail("Fatal : No new leader found !");
+        }
+        StartReply retry = nodes[leader2].start(102);
+        if(!retry.isLeader || retry.index <= first.index) {
+            fail("Committed index " + first.index + " was taken for an uncommitted entry, retry got index " + retry.index);
+        }
+
+        // let everything apply, every node applies the same entries
+        List<List<Integer>> applied = new ArrayList<>();
+        for(i = 0; i < numServers; i++) {
+            List<Integer> log = new ArrayList<>();
+            applied.add(log);
+            BlockingQueue<ApplyMsg> queue = applyMsgMap.get(i);
+            Thread t = new Thread(() -> {
+                try {
+                    while(true) {
+                        ApplyMsg msg = queue.take();
+                        synchronized(log) {
+                            log.add(msg.command);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        network.re_connect(leader);
+        connected[leader] = true;
+
+        deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+        for(i = 0; i < numServers; i++) {
+            List<Integer> log = applied.get(i);
+            while(System.currentTimeMillis() < deadline) {
+                synchronized(log) {
+                    if(log.size() >= retry.index) break;
+                }
+                Thread.sleep(10);
+            }
+            synchronized(log) {
+                if(log.size() < retry.index) {
+                    fail("Server " + i + " applied " + log.size() + " entries, expected " + retry.index);
+                }
+                if(!log.subList(0, retry.index).equals(applied.get(0).subList(0, retry.index))
+                        || log.get(first.index - 1) != 102 || log.get(retry.index - 1) != 102) {
+                    fail("Server " + i + " applied " + log + ", server 0 applied " + applied.get(0));
+                }
+            }
+        }
+
+        for(RaftNode n : nodes) {
+            n.stop();
+        }
+
+        System.out.println( "  ... Passed\n" );
+    }
+
+    /*
+     * A follower restarts from its data directory while its leader holds a
+     * lease it may have helped to grant. For an election timeout after it
+     * starts, it refuses to vote for another candidate, unless the leader
+     * hands over to that candidate, and the cluster carries on afterwards.
+     * Runs in this JVM on a LocalMessagingLayer.
+     */
+    private static void TestLeaseRestart() throws Exception {
+
+        int numServers = 3, i = 0;
+
+        System.out.println( "Testing votes of a follower restarted during the lease ...\n" );
+
+        File dataDir = Files.createTempDirectory("raft-lease").toFile();
+        LocalMessagingLayer network = new LocalMessagingLayer();
+        Map<Integer, BlockingQueue<ApplyMsg>> applyMsgMap = new HashMap<>();
+        for(i = 0; i < numServers; i++) {
+            applyMsgMap.put(i, new java.util.concurrent.LinkedBlockingQueue<>());
+        }
+        network.setApplyMsgMap(applyMsgMap);
+
+        RaftNode[] nodes = new RaftNode[numServers];
+        boolean[] connected = new boolean[numServers];
+        for(i = 0; i < numServers; i++) {
+            nodes[i] = new RaftNode(network, i, numServers, new File(dataDir, "server-" + i).getPath());
+            nodes[i].setLeaseReads(true, 25);
+            connected[i] = true;
+        }
+
+        int leader = -1;
+        long deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+        while((leader = inProcessLeader(nodes, connected, 0)) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        if(leader < 0) {
+            fail("Fatal : No leader found !");
+        }
+        int term = nodes[leader].getState().term;
+        StartReply entry = nodes[leader].start(101);
+        deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT;
+        while(nodes[leader].read().index < entry.index && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // the follower comes back at once, before the leader's lease runs out
+        int follower = (leader + 1) % numServers;
+        int other = (leader + 2) % numServers;
+        network.crash(follower);
+        nodes[follower].stop();
+        long started = System.nanoTime();
+        nodes[follower] = new RaftNode(network, follower, numServers, new File(dataDir, "server-" + follower).getPath());
+        nodes[follower].setLeaseReads(true, 25);
+
+        RequestVoteReply vote = nodes[follower].requestVote(new RequestVoteArgs(term + 1, other, entry.index, term));
+        RequestVoteReply transfer = nodes[follower].requestVote(new RequestVoteArgs(term + 1, other, entry.index, term, true));
+        long elapsed = (System.nanoTime() - started) / 1000000;
+        if(elapsed >= 250) {
+            fail("Restart and votes took " + elapsed + "ms, longer than the election timeout");
+        }
+        if(vote.isVoteGranted()) {
+            fail("Restarted follower voted for " + other + " while the lease of " + leader + " may hold");
+        }
+        if(!transfer.isVoteGranted()) {
+            fail("Restarted follower refused a leadership transfer to " + other);
+        }
+
+        // the vote moved the follower to a new term, the cluster settles on a leader and commits again
+        deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+        int leader2 = -1;
+        StartReply reply = null;
+        while(System.currentTimeMillis() < deadline) {
+            leader2 = inProcessLeader(nodes, connected, term);
+            if(leader2 >= 0 && reply == null) {
+                reply = nodes[leader2].start(102);
+            }
+            if(reply != null && reply.isLeader && nodes[leader2].getCommitIndex() >= reply.index) {
+                break;
+            }
+            if(reply != null && !reply.isLeader) {
+                reply = null;
+            }
+            Thread.sleep(50);
+        }
+        if(reply == null || nodes[leader2].getCommitIndex() < reply.index) {
+            fail("No commit after the restart");
+        }
+
+        for(RaftNode n : nodes) {
+            n.stop();
+        }
+
+        System.out.println( "  ... Passed\n" );
+    }
+
+    /*
+     * Two raft groups share three in-process hosts, one GroupTransport each.
+     * Both groups elect a leader and commit their own entries, which every
+     * host applies to the right group. Their heartbeats go out in Heartbeats
+     * messages, whose replies the leaders need to find where a follower's
+     * log matches, and they keep the leaders in place while the cluster is idle.
+     */
+    private static void TestMultiRaft() throws Exception {
+
+        int numHosts = 3, numGroups = 2, entries = 5, i = 0;
+
+        System.out.println( "Testing two raft groups sharing their hosts ...\n" );
+
+        java.util.concurrent.atomic.AtomicInteger batches = new java.util.concurrent.atomic.AtomicInteger();
+        LocalMessagingLayer network = new LocalMessagingLayer() {
+            @Override
+            public Message send(Message message) throws java.rmi.RemoteException {
+                if(message.getType() == MessageType.Heartbeats) {
+                    batches.incrementAndGet();
+                }
+                return super.send(message);
+            }
+        };
+
+        // what each host applied to each group
+        List<Map<Integer, List<Integer>>> applied = new ArrayList<>();
+        GroupTransport[] hosts = new GroupTransport[numHosts];
+        RaftNode[][] nodes = new RaftNode[numGroups][numHosts];
+        for(int h = 0; h < numHosts; h++) {
+            Map<Integer, List<Integer>> perGroup = new HashMap<>();
+            for(int g = 0; g < numGroups; g++) {
+                perGroup.put(g, new ArrayList<>());
+            }
+            applied.add(perGroup);
+            hosts[h] = new GroupTransport(network, h, numHosts);
+            hosts[h].setApplier((group, msgs) -> {
+                List<Integer> log = perGroup.get(group);
+                synchronized(log) {
+                    for(ApplyMsg msg : msgs) {
+                        log.add(msg.command);
+                    }
+                }
+            });
+        }
+        for(int g = 0; g < numGroups; g++) {
+            for(int h = 0; h < numHosts; h++) {
+                nodes[g][h] = new RaftNode(hosts[h], g, null);
+            }
+        }
+
+        boolean[] connected = new boolean[numHosts];
+        java.util.Arrays.fill(connected, true);
+        int[] leaders = new int[numGroups];
+        int[] terms = new int[numGroups];
+        for(int g = 0; g < numGroups; g++) {
+            long deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 5;
+            while((leaders[g] = inProcessLeader(nodes[g], connected, 0)) < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            if(leaders[g] < 0) {
+                fail("Fatal : No leader found in group " + g);
+            }
+            terms[g] = nodes[g][leaders[g]].getState().term;
+        }
+
+        // each group commits commands of its own
+        for(int g = 0; g < numGroups; g++) {
+            for(i = 1; i <= entries; i++) {
+                StartReply reply = nodes[g][leaders[g]].start(100 * (g + 1) + i);
+                if(!reply.isLeader) {
+                    fail("Leader " + leaders[g] + " of group " + g + " lost its leadership");
+                }
+            }
+        }
+
+        for(int h = 0; h < numHosts; h++) {
+            for(int g = 0; g < numGroups; g++) {
+                List<Integer> expected = new ArrayList<>();
+                for(i = 1; i <= entries; i++) {
+                    expected.add(100 * (g + 1) + i);
+                }
+                List<Integer> log = applied.get(h).get(g);
+                long deadline = System.currentTimeMillis() + RAFT_ELECTION_TIMEOUT * 2;
+                while(System.currentTimeMillis() < deadline) {
+                    synchronized(log) {
+                        if(log.size() >= entries) break;
+                    }
+                    Thread.sleep(10);
+                }
+                synchronized(log) {
+                    if(!log.equals(expected)) {
+                        fail("Host " + h + " applied " + log + " to group " + g + ", expected " + expected);
+                    }
+                }
+            }
+        }
+
+        // idle for a while, the coalesced heartbeats keep every follower quiet
+        Thread.sleep(RAFT_ELECTION_TIMEOUT);
+        for(int g = 0; g < numGroups; g++) {
+            for(int h = 0; h < numHosts; h++) {
+                GetStateReply state = nodes[g][h].getState();
+                if(state.term != terms[g] || state.isLeader != (h == leaders[g])) {
+                    fail("Group " + g + " had a new election, host " + h + " is in term " + state.term
+                            + " instead of " + terms[g]);
+                }
+            }
+        }
+        if(batches.get() == 0) {
+            fail("No heartbeats went out in Heartbeats messages");
+        }
+
+        for(int g = 0; g < numGroups; g++) {
+            for(int h = 0; h < numHosts; h++) {
+                nodes[g][h].stop();
+            }
+        }
+
+        System.out.println( "  ... Passed\n" );
+    }
+
     public static void main( String[] args ) throws InterruptedException {
 
         if( args.length != NUM_ARGS ) {
@@ -557,6 +1276,42 @@ public class RaftTest {
                 case "Count":
                     TestCount();
                     break;
+
+                case "Snapshot":
+                    TestSnapshot();
+                    break;
+
+                case "Read-Index":
+                    TestReadIndex();
+                    break;
+
+                case "Lease-Read":
+                    TestLeaseRead();
+                    break;
+
+                case "Pre-Vote":
+                    TestPreVote();
+                    break;
+
+                case "Leader-Transfer":
+                    TestLeaderTransfer();
+                    break;
+
+                case "Persist":
+                    TestPersist();
+                    break;
+
+                case "Re-Propose":
+                    TestReProposeCommitted();
+                    break;
+
+                case "Lease-Restart":
+                    TestLeaseRestart();
+                    break;
+
+                case "Multi-Raft":
+                    TestMultiRaft();
+                    break;
             }
         } catch (Exception e) {
                 e.printStackTrace();
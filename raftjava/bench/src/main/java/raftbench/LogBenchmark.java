@@ -0,0 +1,65 @@
+package raftbench;
+
+import lib.ChunkedLog;
+import lib.ListLog;
+import lib.Log;
+import lib.LogEntries;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log hot paths on a log of logSize committed entries: appending a batch as
+ * a follower does, and reading a batch back as the leader does when it
+ * builds AppendEntries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class LogBenchmark {
+
+    @Param({"ListLog", "ChunkedLog"})
+    public String backend;
+
+    @Param({"10000", "1000000"})
+    public int logSize;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private Log log;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        log = backend.equals("ListLog") ? new ListLog() : new ChunkedLog();
+        for (int i = 1; i <= logSize; i++) {
+            log.append(1, i, i);
+        }
+        log.commitTo(logSize);
+    }
+
+    // append a batch past the end and cut it off again, so the log keeps its size
+    @Benchmark
+    public int appendBatch() {
+        int last = log.lastEntryIndex();
+        for (int i = 1; i <= batchSize; i++) {
+            log.append(2, last + i, i);
+        }
+        log.deleteConflictingEntries(last + 1);
+        return log.lastEntryIndex();
+    }
+
+    @Benchmark
+    public ArrayList<LogEntries> getEntryFrom() {
+        return log.getEntryFrom(logSize - batchSize + 1);
+    }
+
+    @Benchmark
+    public byte[] getPackedEntries() {
+        return log.getPackedEntries(logSize - batchSize + 1, logSize);
+    }
+}
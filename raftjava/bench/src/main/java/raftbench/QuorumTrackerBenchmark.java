@@ -0,0 +1,51 @@
+package raftbench;
+
+import lib.QuorumTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The leader's commit index after one follower ack: copying and sorting
+ * every match index, as commitEntry used to, against the incremental
+ * QuorumTracker. Acks come round robin from the followers, each one a
+ * batch ahead of its previous ack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuorumTrackerBenchmark {
+
+    @Param({"3", "5", "7", "15"})
+    public int clusterSize;
+
+    private int[] matchIndex;
+    private QuorumTracker tracker;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        matchIndex = new int[clusterSize];
+        tracker = new QuorumTracker(clusterSize);
+    }
+
+    @Benchmark
+    public int copyAndSort() {
+        int node = next++ % clusterSize;
+        matchIndex[node] += 64;
+        int[] copy = Arrays.copyOf(matchIndex, clusterSize);
+        Arrays.sort(copy);
+        return copy[clusterSize - (clusterSize / 2 + 1)];
+    }
+
+    @Benchmark
+    public int tracker() {
+        int node = next++ % clusterSize;
+        matchIndex[node] += 64;
+        return tracker.advance(node, matchIndex[node]);
+    }
+}
@@ -0,0 +1,119 @@
+package raftbench;
+
+import lib.AppendEntriesArg;
+import lib.AppendEntriesReply;
+import lib.LocalMessagingLayer;
+import lib.LogRecords;
+import lib.Message;
+import lib.MessageCodec;
+import lib.MessageHandling;
+import lib.MessageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A follower handling AppendEntries from its leader, batchSize 0 is a
+ * heartbeat. appendEntries calls the handler directly, deliverMessage
+ * also decodes the request and encodes the reply like the transport does.
+ * Both build the packed batch per call, as the leader would.
+ *
+ * RaftNode lives in the default package, so it is created and called
+ * through reflection, on an in-process network with no other peers. Its
+ * log is cut back at every iteration to keep the heap bounded.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class RaftNodeBenchmark {
+
+    private static final int LEADER = 1;
+
+    @Param({"0", "1", "64"})
+    public int batchSize;
+
+    private LocalMessagingLayer network;
+    private MessageHandling node;
+    private MethodHandle appendEntries;
+
+    private int term;
+    private int lastIndex;
+    private int lastTerm;
+
+    @Setup(Level.Trial)
+    public void startNode() throws Throwable {
+        network = new LocalMessagingLayer();
+
+        Class<?> raftNode = Class.forName("RaftNode");
+        appendEntries = MethodHandles.publicLookup().findVirtual(raftNode, "AppendEntries",
+                MethodType.methodType(AppendEntriesReply.class, AppendEntriesArg.class));
+
+        node = (MessageHandling) raftNode.getConstructor(LocalMessagingLayer.class,
+                int.class, int.class, String.class).newInstance(network, 0, 3, null);
+    }
+
+    // take over as leader of a newer term with a single entry, which replaces the whole log
+    @Setup(Level.Iteration)
+    public void resetLog() throws Throwable {
+        term = node.getState().term + 1;
+        lastIndex = 0;
+        lastTerm = 0;
+        ByteBuffer first = ByteBuffer.allocate(LogRecords.RECORD_SIZE);
+        LogRecords.put(first, term, 1, 0);
+        send(first.array());
+        lastIndex = 1;
+        lastTerm = term;
+
+        // dropping a long log may have outlasted the election timeout
+        term = node.getState().term + 1;
+        send(null);
+    }
+
+    private AppendEntriesArg nextRequest() {
+        byte[] entries = null;
+        if (batchSize > 0) {
+            ByteBuffer buf = ByteBuffer.allocate(batchSize * LogRecords.RECORD_SIZE);
+            for (int i = 1; i <= batchSize; i++) {
+                LogRecords.put(buf, term, lastIndex + i, i & 1023);
+            }
+            entries = buf.array();
+        }
+        return new AppendEntriesArg(term, LEADER, lastIndex, lastTerm, entries, 0);
+    }
+
+    private void accepted(boolean success) {
+        if (!success)
+            throw new IllegalStateException("follower rejected AppendEntries at " + lastIndex);
+        lastIndex += batchSize;
+        if (batchSize > 0) lastTerm = term;
+    }
+
+    private void send(byte[] entries) throws Throwable {
+        AppendEntriesArg args = new AppendEntriesArg(term, LEADER, lastIndex, lastTerm, entries, 0);
+        AppendEntriesReply reply = (AppendEntriesReply) appendEntries.invoke(node, args);
+        if (!reply.isSuccess())
+            throw new IllegalStateException("follower rejected AppendEntries at " + lastIndex);
+    }
+
+    @Benchmark
+    public AppendEntriesReply appendEntries() throws Throwable {
+        AppendEntriesReply reply = (AppendEntriesReply) appendEntries.invoke(node, nextRequest());
+        accepted(reply.isSuccess());
+        return reply;
+    }
+
+    @Benchmark
+    public AppendEntriesReply deliverMessage() throws Exception {
+        Message msg = new Message(MessageType.AppendEntriesArg, LEADER, 0, MessageCodec.encode(nextRequest()));
+        AppendEntriesReply reply = (AppendEntriesReply) MessageCodec.decode(node.deliverMessage(msg).getBody());
+        accepted(reply.isSuccess());
+        return reply;
+    }
+}
@@ -0,0 +1,79 @@
+package raftbench;
+
+import lib.AppendEntriesArg;
+import lib.AppendEntriesReply;
+import lib.LogEntries;
+import lib.MessageCodec;
+import lib.RequestVoteArgs;
+import lib.SerializationUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding message bodies, Java serialization through
+ * SerializationUtils against MessageCodec. batchSize 0 is a heartbeat.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"SerializationUtils", "MessageCodec"})
+    public String codec;
+
+    @Param({"0", "64"})
+    public int batchSize;
+
+    private AppendEntriesArg appendEntries;
+    private byte[] encodedAppendEntries;
+    private AppendEntriesReply reply;
+    private RequestVoteArgs requestVote;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        ArrayList<LogEntries> batch = null;
+        if (batchSize > 0) {
+            batch = new ArrayList<>();
+            for (int i = 1; i <= batchSize; i++) {
+                batch.add(new LogEntries(7, 100000 + i, i));
+            }
+        }
+        appendEntries = new AppendEntriesArg(7, 0, 100000, 7, batch, 99990);
+        encodedAppendEntries = encode(appendEntries);
+        reply = new AppendEntriesReply(7, true);
+        requestVote = new RequestVoteArgs(7, 2, 100000, 7);
+    }
+
+    private byte[] encode(Object obj) throws Exception {
+        return codec.equals("MessageCodec") ? MessageCodec.encode(obj) : SerializationUtils.toByteArray(obj);
+    }
+
+    private Object decode(byte[] bytes) throws Exception {
+        return codec.equals("MessageCodec") ? MessageCodec.decode(bytes) : SerializationUtils.toObject(bytes);
+    }
+
+    @Benchmark
+    public byte[] encodeAppendEntries() throws Exception {
+        return encode(appendEntries);
+    }
+
+    @Benchmark
+    public Object decodeAppendEntries() throws Exception {
+        return decode(encodedAppendEntries);
+    }
+
+    @Benchmark
+    public Object roundTripAppendEntriesReply() throws Exception {
+        return decode(encode(reply));
+    }
+
+    @Benchmark
+    public Object roundTripRequestVote() throws Exception {
+        return decode(encode(requestVote));
+    }
+}
@@ -3,6 +3,7 @@
  */
 package lib;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class AppendEntriesArg implements Serializable {
@@ -11,19 +12,34 @@ public class AppendEntriesArg implements Serializable {
     private int leaderId;
     private int prevLogIndex;
     private int prevLogTerm;
-    private ArrayList<LogEntries> entries;
+    // entries packed in the LogRecords layout, sent as one byte array
+    // instead of a list of objects
+    private byte[] entries;
     private int leaderCommit;
 
 
     public AppendEntriesArg(int term, int leaderId, int prevLogIndex, int prevLogTerm, ArrayList<LogEntries> en, int leaderCommit) {
+        this(term, leaderId, prevLogIndex, prevLogTerm, pack(en), leaderCommit);
+    }
+
+    public AppendEntriesArg(int term, int leaderId, int prevLogIndex, int prevLogTerm, byte[] packedEntries, int leaderCommit) {
         this.term = term;
         this.leaderId = leaderId;
         this.prevLogIndex = prevLogIndex;
         this.prevLogTerm = prevLogTerm;
-        this.entries = en;
+        this.entries = packedEntries;
         this.leaderCommit = leaderCommit;
     }
 
+    private static byte[] pack(ArrayList<LogEntries> en) {
+        if (en == null) return null;
+        ByteBuffer buf = ByteBuffer.allocate(en.size() * LogRecords.RECORD_SIZE);
+        for (LogEntries e : en) {
+            LogRecords.put(buf, e.getTerm(), e.getIndex(), e.getCommand());
+        }
+        return buf.array();
+    }
+
 
     public int getTerm() {
         return term;
@@ -57,12 +73,27 @@ public class AppendEntriesArg implements Serializable {
         this.prevLogTerm = prevLogTerm;
     }
 
+    // decodes the packed entries into objects, prefer getPackedEntries
     public ArrayList<LogEntries> getEntries() {
-        return entries;
+        if (entries == null) return null;
+        ByteBuffer buf = ByteBuffer.wrap(entries);
+        ArrayList<LogEntries> res = new ArrayList<>();
+        for (int i = 0; i < getEntryCount(); i++) {
+            res.add(new LogEntries(LogRecords.term(buf, 0, i), LogRecords.index(buf, 0, i), LogRecords.command(buf, 0, i)));
+        }
+        return res;
     }
 
     public void setEntries(ArrayList<LogEntries> entries) {
-        this.entries = entries;
+        this.entries = pack(entries);
+    }
+
+    public byte[] getPackedEntries() {
+        return entries;
+    }
+
+    public int getEntryCount() {
+        return LogRecords.count(entries);
     }
 
     public int getLeaderCommit() {return leaderCommit;}
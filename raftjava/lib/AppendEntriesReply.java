@@ -11,10 +11,25 @@ public class AppendEntriesReply implements Serializable {
     private int term;
     private boolean success;
 
+    // hints for a rejected request, -1 when not known:
+    // the first index of the follower's entries in conflictTerm at prevLogIndex,
+    // or its last index + 1 with conflictTerm -1 when its log ends before prevLogIndex
+    private int conflictIndex;
+    private int conflictTerm;
+    // the follower's last log index
+    private int lastIndex;
+
 
     public AppendEntriesReply(int term, boolean success) {
+        this(term, success, -1, -1, -1);
+    }
+
+    public AppendEntriesReply(int term, boolean success, int conflictIndex, int conflictTerm, int lastIndex) {
         this.term = term;
         this.success = success;
+        this.conflictIndex = conflictIndex;
+        this.conflictTerm = conflictTerm;
+        this.lastIndex = lastIndex;
     }
 
     public int getTerm() {return term;}
@@ -24,4 +39,10 @@ public class AppendEntriesReply implements Serializable {
     public boolean isSuccess() {return success;}
 
     public void setSuccess(boolean success) {this.success = success;}
+
+    public int getConflictIndex() {return conflictIndex;}
+
+    public int getConflictTerm() {return conflictTerm;}
+
+    public int getLastIndex() {return lastIndex;}
 }
@@ -0,0 +1,110 @@
+package lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * ChunkedLog - Log backend storing terms and commands in parallel int arrays,
+ * allocated in fixed size chunks so growing the log never copies what is
+ * already stored. The index of an entry is its position, so it is not stored
+ * at all: an entry costs 8 bytes instead of an object per entry.
+ *
+ * Compaction releases whole chunks from the front, base is the index held
+ * by the first slot of the first chunk.
+ *
+ * The first chunk starts at FIRST_CHUNK_SIZE slots and doubles until it is
+ * full size, so a log that stays short, like that of an idle raft group of
+ * a host running thousands, takes a few hundred bytes instead of 128KB.
+ *
+ * getEntry builds a new LogEntries on every call, changing it does not
+ * change the log, use setTermAtIndex for that.
+ */
+public class ChunkedLog extends Log {
+
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 16384 entries per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int FIRST_CHUNK_SIZE = 16;
+
+    private ArrayList<int[]> terms;
+    private ArrayList<int[]> commands;
+    private int base = 0;  // index of slot 0, the placeholder while nothing is compacted
+    private int size = 1;  // slots in use, counted from base
+
+    public ChunkedLog() {
+        terms = new ArrayList<>();
+        commands = new ArrayList<>();
+        terms.add(new int[FIRST_CHUNK_SIZE]);
+        commands.add(new int[FIRST_CHUNK_SIZE]);
+    }
+
+    @Override
+    protected void add(int term, int index, int command) {
+        int chunk = size >>> CHUNK_SHIFT;
+        int slot = size & CHUNK_MASK;
+        if (chunk == terms.size()) {
+            terms.add(new int[CHUNK_SIZE]);
+            commands.add(new int[CHUNK_SIZE]);
+        } else if (slot == terms.get(chunk).length) {
+            // only a first chunk that is still growing can be short
+            int grown = Math.min(slot * 2, CHUNK_SIZE);
+            terms.set(chunk, Arrays.copyOf(terms.get(chunk), grown));
+            commands.set(chunk, Arrays.copyOf(commands.get(chunk), grown));
+        }
+        terms.get(chunk)[slot] = term;
+        commands.get(chunk)[slot] = command;
+        size++;
+    }
+
+    @Override
+    protected void removeLast() {
+        size--;
+        // release a chunk once it is empty, but keep one spare to avoid
+        // thrashing when the log keeps growing and shrinking at a boundary
+        int chunks = size == 0 ? 0 : ((size - 1) >>> CHUNK_SHIFT) + 1;
+        while (terms.size() > chunks + 1) {
+            terms.remove(terms.size() - 1);
+            commands.remove(commands.size() - 1);
+        }
+    }
+
+    @Override
+    protected void removePrefix(int index) {
+        // only whole chunks are released, the rest of a partly covered chunk stays
+        while (!terms.isEmpty() && index - base >= CHUNK_SIZE - 1) {
+            terms.remove(0);
+            commands.remove(0);
+            base += CHUNK_SIZE;
+            size -= CHUNK_SIZE;
+        }
+    }
+
+    @Override
+    protected void clear(int index) {
+        terms.clear();
+        commands.clear();
+        // the slot of index itself is a placeholder again
+        base = index;
+        size = 1;
+        terms.add(new int[FIRST_CHUNK_SIZE]);
+        commands.add(new int[FIRST_CHUNK_SIZE]);
+    }
+
+    @Override
+    protected int termAt(int index) {
+        index -= base;
+        return terms.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    @Override
+    protected int commandAt(int index) {
+        index -= base;
+        return commands.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    @Override
+    protected void setTermAt(int index, int term) {
+        index -= base;
+        terms.get(index >>> CHUNK_SHIFT)[index & CHUNK_MASK] = term;
+    }
+}
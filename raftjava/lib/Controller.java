@@ -5,6 +5,7 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Random;
@@ -20,15 +21,12 @@ import java.util.concurrent.*;
  *
  * The Controller will be a RMI server executing on an input port and manage
  * the communicating of all the raf peers. The instance will be composed in the
- * Config.
+ * Config. LocalMessagingLayer reuses the same network for peers that run in
+ * one JVM, without RMI.
  *
  * @author Sphoorti Joglekar, Priya Avhad, Yijia Cui, Zonglin Wang
  */
-public class Controller extends UnicastRemoteObject implements MessagingLayer {
-    /**
-     * For byte serialization.
-     */
-    private static final long serialVersionUID = 1L;
+public class Controller implements MessagingLayer {
     /**
      * Registry for the RMI server.
      */
@@ -59,15 +57,24 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
      * @throws Exception
      */
     public Controller(int port) throws Exception {
-        reliable = true;
+        this();
+        UnicastRemoteObject.exportObject(this, 0);
         try {
             reg = LocateRegistry.createRegistry(port);
         } catch (RemoteException e) {
             //already exist
         }
         Naming.rebind("rmi://localhost:" + port + "/MessageServer", this);
+    }
+
+    /**
+     * Controller - Construct a network that is not exported over RMI, for
+     * peers running in this JVM.
+     */
+    protected Controller() {
+        reliable = true;
         nodes = new ConcurrentHashMap<>();
-        disconnected_nodes = new HashMap<>();
+        disconnected_nodes = new ConcurrentHashMap<>();
         rpc_counters = new ConcurrentHashMap<>();
     }
 
@@ -89,6 +96,25 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
         this.nodes.putIfAbsent(id, new Node(id, remoteController));
     }
 
+    /**
+     * crash - Forget a node whose process is gone, messages to it are dropped
+     * until a restarted peer registers again under the same ID.
+     * @param i the node ID.
+     */
+    public void crash(int i) {
+        nodes.remove(i);
+        disconnected_nodes.remove(i);
+    }
+
+    /**
+     * isRegistered - Whether a node is registered and connected.
+     * @param i the node ID.
+     * @return true once the node can be reached.
+     */
+    public boolean isRegistered(int i) {
+        return nodes.containsKey(i);
+    }
+
     /**
      * send - Start a new thread to send out the message.
      * @param message the message to be sent.
@@ -102,8 +128,7 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
             return reply;
         }
         
-        int counter = rpc_counters.getOrDefault(message.getDest(), 0);
-        rpc_counters.put(message.getDest(), counter + 1);
+        rpc_counters.merge(message.getDest(), 1, Integer::sum);
 
         // try what to do with this message packet
         boolean successDeliver = makeDecision(message);
@@ -127,8 +152,10 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
             return;
         }
 
-        disconnected_nodes.put(i, nodes.get(i));
-        nodes.remove(i);
+        Node n = nodes.remove(i);
+        if (n != null) {
+            disconnected_nodes.put(i, n);
+        }
     }
 
     /**
@@ -227,6 +254,67 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
         return null;
     }
 
+    /**
+     * read - Ask a node for a linearizable read.
+     *
+     * @param nodeID the node ID.
+     * @return the read index and leader flag, null if the node is disconnected.
+     */
+    public ReadReply read( int nodeID ) {
+        ReadReply reply;
+
+        try {
+            Node n = nodes.get(nodeID);
+            if (n != null) {
+                reply = n.rc.read();
+                return reply;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit( -1 );
+        }
+        return null;
+    }
+
+    /**
+     * transferLeadership - Ask the leader to hand its leadership over.
+     *
+     * @param nodeID the leader's node ID.
+     * @param target the node to become leader.
+     * @return whether the leader stepped down for target, false if it is disconnected.
+     */
+    public boolean transferLeadership( int nodeID, int target ) {
+        try {
+            Node n = nodes.get(nodeID);
+            if (n != null) {
+                return n.rc.transferLeadership(target);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit( -1 );
+        }
+        return false;
+    }
+
+    /**
+     * snapshot - Hand a node a snapshot of its state machine.
+     *
+     * @param nodeID the node ID.
+     * @param index the last log index the snapshot includes.
+     * @param snapshot the state machine state.
+     */
+    public void snapshot( int nodeID, int index, byte[] snapshot ) {
+        try {
+            Node n = nodes.get(nodeID);
+            if (n != null) {
+                n.rc.snapshot(index, snapshot);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit( -1 );
+        }
+    }
+
     /**
      * applyChannel - add a ApplyMsg when a entry is committed for testing.
      *
@@ -246,6 +334,18 @@ public class Controller extends UnicastRemoteObject implements MessagingLayer {
         }
     }
 
+    /**
+     * applyChannelBatch - add several ApplyMsgs at once, in order, one remote
+     * call for a whole batch of committed entries.
+     *
+     * @param msgs the messages, in index order.
+     */
+    public void applyChannelBatch(List<ApplyMsg> msgs) {
+        for (ApplyMsg msg : msgs) {
+            applyChannel(msg);
+        }
+    }
+
     /**
      * setApplyMsgMap - setter of the controller channel map.
      *
@@ -0,0 +1,131 @@
+package lib;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DurableLog - ChunkedLog that writes every change through to a
+ * WriteAheadLog and is rebuilt from it on construction. Writes are only
+ * buffered, callers decide when to sync. Packed entries for AppendEntries
+ * are copied straight from the log files, the records there already have
+ * the wire layout.
+ *
+ * Compaction deletes the segments the snapshot covers, installing a snapshot
+ * from the leader that replaces the whole log empties the files.
+ *
+ * A failing disk cannot be handled by raft, so IO errors are rethrown
+ * unchecked and end the operation that hit them.
+ */
+public class DurableLog extends ChunkedLog {
+
+    private final WriteAheadLog wal;
+    private boolean recovering;
+    private boolean inconsistent;
+
+    public DurableLog(WriteAheadLog wal) throws IOException {
+        this(wal, 0, 0);
+    }
+
+    // rebuild the log that starts after the snapshot at snapshotIndex
+    public DurableLog(WriteAheadLog wal, int snapshotIndex, int snapshotTerm) throws IOException {
+        this.wal = wal;
+
+        recovering = true;
+        try {
+            if (snapshotIndex > 0)
+                startAt(snapshotIndex, snapshotTerm);
+            wal.replay((term, index, command) -> {
+                if (index < snapshotIndex) return;
+                if (index == snapshotIndex) {
+                    // entries after a different entry at the snapshot index were never accepted
+                    inconsistent |= term != snapshotTerm;
+                } else if (!inconsistent && index == lastEntryIndex() + 1) {
+                    restore(term, index, command);
+                } else {
+                    inconsistent = true;
+                }
+            });
+            if (inconsistent || wal.getLastIndex() < snapshotIndex) {
+                // we crashed between saving a leader's snapshot and resetting the files
+                startAt(snapshotIndex, snapshotTerm);
+                wal.reset(snapshotIndex + 1);
+            }
+        } finally {
+            recovering = false;
+        }
+    }
+
+    @Override
+    protected void add(int term, int index, int command) {
+        super.add(term, index, command);
+        if (recovering) return;
+        try {
+            wal.append(term, index, command);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void setTermAt(int index, int term) {
+        super.setTermAt(index, term);
+        try {
+            wal.rewriteTerm(index, term, commandAt(index));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void deleteConflictingEntries(int index) {
+        if (index <= lastEntryIndex()) {
+            try {
+                wal.truncate(index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        super.deleteConflictingEntries(index);
+    }
+
+    @Override
+    protected void removePrefix(int index) {
+        super.removePrefix(index);
+        wal.discardUpTo(index);
+    }
+
+    @Override
+    protected void clear(int index) {
+        super.clear(index);
+        if (recovering) return;
+        try {
+            wal.reset(index + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected void packEntries(int from, int to, ByteBuffer dst) {
+        try {
+            wal.read(from, to, dst);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void sync() throws IOException {
+        wal.sync();
+    }
+
+    // highest index that survives a crash
+    public int getSyncedIndex() {
+        return wal.getSyncedIndex();
+    }
+
+    // flush and close the log files, the log cannot be used afterwards
+    public void close() {
+        wal.close();
+    }
+}
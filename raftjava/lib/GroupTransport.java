@@ -0,0 +1,291 @@
+package lib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * GroupTransport - The messaging of one host running many raft groups, one
+ * node of each, all of them spanning the same hosts. The groups share one
+ * transport: one registration with the in-process network or one set of
+ * peer connections, and the pools behind it. Their messages carry the group
+ * id and are routed to the group's node on arrival. Their timers run on the
+ * scheduler RaftTimer already shares, and their committed entries are applied
+ * on one pool of this host instead of on a thread per node.
+ *
+ * The heartbeats the groups send to the same host are coalesced: a heartbeat
+ * waits up to the coalescing delay for the others, then all of them go out in
+ * a single Heartbeats message and come back in a single reply, rather than one
+ * message per group and heartbeat interval.
+ *
+ * The host only receives messages, the calls of MessageHandling are made on
+ * the node of a group.
+ */
+public class GroupTransport implements MessageReceiver {
+
+    /**
+     * Receives the committed entries of every group of the host, in order
+     * within a group.
+     */
+    public interface GroupApplier {
+        public void apply(int group, List<ApplyMsg> msgs);
+    }
+
+    private final int id;
+    private final int numHosts;
+    private final ConcurrentMap<Integer, MessageHandling> groups = new ConcurrentHashMap<>();
+    private final ExecutorService appliers;
+    private volatile GroupApplier applier;
+
+    // heartbeats waiting to go out, by destination host
+    private final Outbox[] outboxes;
+    private volatile long coalesceMillis = 2;
+
+    private final TransportLib transport;
+
+    private static final class Outbox {
+        final RaftTimer flush;
+        List<Pending> pending = new ArrayList<>();  // guarded by this
+
+        Outbox(Runnable flush) {
+            this.flush = new RaftTimer(flush);
+        }
+    }
+
+    private static final class Pending {
+        final int group;
+        final byte[] body;
+        final CompletableFuture<Message> reply = new CompletableFuture<>();
+
+        Pending(int group, byte[] body) {
+            this.group = group;
+            this.body = body;
+        }
+    }
+
+    /**
+     * GroupTransport - A host on a network in this JVM.
+     *
+     * @param network  the in-process network
+     * @param id       the id of this host
+     * @param numHosts the number of hosts every group spans
+     */
+    public GroupTransport(LocalMessagingLayer network, int id, int numHosts) {
+        this.id = id;
+        this.numHosts = numHosts;
+        this.outboxes = newOutboxes();
+        this.appliers = newAppliers(id);
+        // register last, messages may arrive as soon as we do
+        this.transport = new TransportLib(network, id, this);
+    }
+
+    /**
+     * GroupTransport - A host talking to the others directly over sockets.
+     *
+     * @param id    the id of this host
+     * @param hosts the address of every host by id, this one listens on hosts[id]
+     */
+    public GroupTransport(int id, InetSocketAddress[] hosts) {
+        this.id = id;
+        this.numHosts = hosts.length;
+        this.outboxes = newOutboxes();
+        this.appliers = newAppliers(id);
+        this.transport = new TransportLib(id, this, hosts);
+    }
+
+    private Outbox[] newOutboxes() {
+        Outbox[] o = new Outbox[numHosts];
+        for (int i = 0; i < numHosts; i++) {
+            int dest = i;
+            o[i] = new Outbox(() -> flush(dest));
+        }
+        return o;
+    }
+
+    private static ExecutorService newAppliers(int id) {
+        return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "Group-Applier-" + id);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getId() { return id; }
+    public int getNumHosts() { return numHosts; }
+    public int getGroupCount() { return groups.size(); }
+
+    /**
+     * setApplier - Where the committed entries of the groups go, they are
+     * dropped while there is none.
+     *
+     * @param applier the receiver of the entries
+     */
+    public void setApplier(GroupApplier applier) {
+        this.applier = applier;
+    }
+
+    /**
+     * setHeartbeatCoalescing - How long a heartbeat waits for those of other
+     * groups to the same host, 0 to send every heartbeat on its own.
+     *
+     * @param millis the delay in milliseconds
+     */
+    public void setHeartbeatCoalescing(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("bad coalescing delay: " + millis);
+        this.coalesceMillis = millis;
+    }
+
+    /**
+     * register - Add the node of a group, messages for the group are handed
+     * to it from now on.
+     *
+     * @param group the raft group
+     * @param node  the node of this host in the group
+     * @return the transport the node sends through
+     * @throws IllegalArgumentException when the group already has a node here
+     */
+    public TransportLib register(int group, MessageHandling node) {
+        if (groups.putIfAbsent(group, node) != null)
+            throw new IllegalArgumentException("group " + group + " is already on host " + id);
+        return new TransportLib(this, group, id);
+    }
+
+    /**
+     * unregister - Remove the node of a group, messages for the group are
+     * dropped from now on.
+     *
+     * @param group the raft group
+     * @param node  the node registered for it
+     */
+    public void unregister(int group, MessageHandling node) {
+        groups.remove(group, node);
+    }
+
+    /**
+     * getApplyExecutor - The pool the nodes of the groups apply their
+     * committed entries on.
+     *
+     * @return the pool
+     */
+    public ExecutorService getApplyExecutor() {
+        return appliers;
+    }
+
+    private static Message inGroup(int group, Message m) {
+        return new Message(m.getType(), m.getSrc(), m.getDest(), group, m.getBody());
+    }
+
+    Message send(int group, Message message) throws RemoteException {
+        return transport.sendMessage(inGroup(group, message));
+    }
+
+    CompletableFuture<Message> sendAsync(int group, Message message, long timeoutMillis) {
+        return transport.sendMessageAsync(inGroup(group, message), timeoutMillis);
+    }
+
+    void apply(int group, List<ApplyMsg> msgs) {
+        GroupApplier a = applier;
+        if (a != null)
+            a.apply(group, msgs);
+    }
+
+    // queue a heartbeat for its host, the first one in arms the flush
+    CompletableFuture<Message> sendHeartbeat(int group, Message message) {
+        long delay = coalesceMillis;
+        int dest = message.getDest();
+        if (delay == 0 || dest < 0 || dest >= numHosts || dest == id)
+            return transport.sendMessageAsync(inGroup(group, message));
+
+        Outbox o = outboxes[dest];
+        Pending p = new Pending(group, message.getBody());
+        boolean first;
+        synchronized (o) {
+            first = o.pending.isEmpty();
+            o.pending.add(p);
+        }
+        if (first)
+            o.flush.reset(delay);
+        return p.reply;
+    }
+
+    // send everything queued for dest as one message, and hand each group its reply
+    private void flush(int dest) {
+        Outbox o = outboxes[dest];
+        List<Pending> batch;
+        synchronized (o) {
+            batch = o.pending;
+            o.pending = new ArrayList<>();
+        }
+        if (batch.isEmpty())
+            return;
+
+        int[] ids = new int[batch.size()];
+        byte[][] bodies = new byte[batch.size()][];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = batch.get(i).group;
+            bodies[i] = batch.get(i).body;
+        }
+        Message msg = new Message(MessageType.Heartbeats, id, dest, MessageCodec.encode(new HeartbeatBatch(ids, bodies)));
+
+        transport.sendMessageAsync(msg).thenAccept(re -> {
+            HeartbeatBatch replies = null;
+            try {
+                if (re != null && re.getBody() != null)
+                    replies = (HeartbeatBatch) MessageCodec.decode(re.getBody());
+            } catch (IOException | ClassCastException e) {
+                e.printStackTrace();
+            }
+            for (int i = 0; i < ids.length; i++) {
+                Message reply = null;
+                // replies come back in the order of the requests
+                if (replies != null && i < replies.size() && replies.getBody(i) != null)
+                    reply = new Message(MessageType.AppendEntriesReply, dest, id, ids[i], replies.getBody(i));
+                batch.get(i).reply.complete(reply);
+            }
+        });
+    }
+
+    // hand each heartbeat of the message to its group, one reply for all of them
+    private Message deliverHeartbeats(Message message) {
+        HeartbeatBatch batch;
+        try {
+            batch = (HeartbeatBatch) MessageCodec.decode(message.getBody());
+        } catch (IOException | ClassCastException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        int[] ids = new int[batch.size()];
+        byte[][] replies = new byte[batch.size()][];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = batch.getGroup(i);
+            MessageHandling node = groups.get(ids[i]);
+            if (node == null)
+                continue;
+            Message reply = node.deliverMessage(new Message(MessageType.AppendEntriesArg, message.getSrc(),
+                    message.getDest(), ids[i], batch.getBody(i)));
+            replies[i] = reply == null ? null : reply.getBody();
+        }
+        return new Message(MessageType.HeartbeatsReply, id, message.getSrc(),
+                MessageCodec.encode(new HeartbeatBatch(ids, replies)));
+    }
+
+    @Override
+    public Message deliverMessage(Message message) {
+        if (message == null || message.getDest() != id)
+            return null;
+        if (message.getType() == MessageType.Heartbeats)
+            return deliverHeartbeats(message);
+
+        MessageHandling node = groups.get(message.getGroup());
+        return node == null ? null : node.deliverMessage(message);
+    }
+}
@@ -0,0 +1,26 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * The heartbeats of many raft groups between one pair of hosts, sent as one
+ * Heartbeats message, or their replies in the HeartbeatsReply. Entry i is the
+ * encoded AppendEntriesArg, or AppendEntriesReply, of group groups[i]; a
+ * reply body is null when the group did not answer.
+ */
+public class HeartbeatBatch implements Serializable {
+    static final long serialVersionUID = 42L;
+    private int[] groups;
+    private byte[][] bodies;
+
+    public HeartbeatBatch(int[] groups, byte[][] bodies) {
+        this.groups = groups;
+        this.bodies = bodies;
+    }
+
+    public int size() {return groups.length;}
+
+    public int getGroup(int i) {return groups[i];}
+
+    public byte[] getBody(int i) {return bodies[i];}
+}
@@ -0,0 +1,44 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * Arguments of the InstallSnapshot call, carrying one chunk of the leader's
+ * snapshot. Chunks are sent in order, offset is where data starts in the
+ * snapshot and done marks the last chunk.
+ */
+public class InstallSnapshotArgs implements Serializable {
+    static final long serialVersionUID = 42L;
+    private int term;
+    private int leaderId;
+    private int lastIncludedIndex;
+    private int lastIncludedTerm;
+    private int offset;
+    private byte[] data;
+    private boolean done;
+
+    public InstallSnapshotArgs(int term, int leaderId, int lastIncludedIndex, int lastIncludedTerm,
+                               int offset, byte[] data, boolean done) {
+        this.term = term;
+        this.leaderId = leaderId;
+        this.lastIncludedIndex = lastIncludedIndex;
+        this.lastIncludedTerm = lastIncludedTerm;
+        this.offset = offset;
+        this.data = data;
+        this.done = done;
+    }
+
+    public int getTerm() {return term;}
+
+    public int getLeaderId() {return leaderId;}
+
+    public int getLastIncludedIndex() {return lastIncludedIndex;}
+
+    public int getLastIncludedTerm() {return lastIncludedTerm;}
+
+    public int getOffset() {return offset;}
+
+    public byte[] getData() {return data;}
+
+    public boolean isDone() {return done;}
+}
@@ -0,0 +1,23 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * Reply to one InstallSnapshot chunk. success is false when the chunk did not
+ * continue the snapshot the follower was receiving, the leader then starts
+ * over from the first chunk.
+ */
+public class InstallSnapshotReply implements Serializable {
+    static final long serialVersionUID = 42L;
+    private int term;
+    private boolean success;
+
+    public InstallSnapshotReply(int term, boolean success) {
+        this.term = term;
+        this.success = success;
+    }
+
+    public int getTerm() {return term;}
+
+    public boolean isSuccess() {return success;}
+}
@@ -0,0 +1,66 @@
+package lib;
+
+import java.util.ArrayList;
+
+/**
+ * ListLog - Log backend keeping one LogEntries object per entry in an
+ * ArrayList. getEntry hands out the stored objects themselves. The first
+ * element is a placeholder for base, the snapshot index once compacted.
+ */
+public class ListLog extends Log {
+
+    private ArrayList<LogEntries> logs;
+    private int base = 0;
+
+    public ListLog() {
+        logs = new ArrayList<>();
+        // placeholder for 0 index
+        logs.add(null);
+    }
+
+    @Override
+    protected void add(int term, int index, int command) {
+        logs.add(new LogEntries(term, index, command));
+    }
+
+    @Override
+    protected void removeLast() {
+        logs.remove(logs.size() - 1);
+    }
+
+    @Override
+    protected void removePrefix(int index) {
+        // copy the tail so the backing array shrinks, the entry at index becomes the placeholder
+        ArrayList<LogEntries> tail = new ArrayList<>(logs.subList(index - base, logs.size()));
+        tail.set(0, null);
+        logs = tail;
+        base = index;
+    }
+
+    @Override
+    protected void clear(int index) {
+        logs = new ArrayList<>();
+        logs.add(null);
+        base = index;
+    }
+
+    @Override
+    protected int termAt(int index) {
+        return logs.get(index - base).getTerm();
+    }
+
+    @Override
+    protected int commandAt(int index) {
+        return logs.get(index - base).getCommand();
+    }
+
+    @Override
+    protected void setTermAt(int index, int term) {
+        logs.get(index - base).setTerm(term);
+    }
+
+    @Override
+    protected LogEntries entryAt(int index) {
+        return logs.get(index - base);
+    }
+}
@@ -0,0 +1,68 @@
+package lib;
+
+/**
+ * LocalMessagingLayer - The Controller network for raft peers running inside
+ * one JVM, for tests, simulation or co-located replicas. Peers register their
+ * MessageReceiver directly and a message is handed to the destination as the
+ * same object, there is no RMI hop and no serialization in between.
+ * Disconnect, reconnect, the unreliable mode and the rpc counts are those of
+ * Controller.
+ */
+public class LocalMessagingLayer extends Controller {
+
+    public LocalMessagingLayer() {
+        super();
+    }
+
+    /**
+     * register - Attach a peer running in this JVM to the network. A receiver
+     * that is not a raft node, such as the GroupTransport of a host, only
+     * gets messages, the test calls on its id find no node like those on a
+     * disconnected one.
+     *
+     * @param id the node id
+     * @param receiver the node, or host, receiving the messages sent to id
+     */
+    public void register(int id, MessageReceiver receiver) {
+        register(id, new LocalController(receiver));
+    }
+
+    /**
+     * LocalController - RemoteControllerIntf that calls the node directly,
+     * unlike RemoteController it is never exported.
+     */
+    private static class LocalController implements RemoteControllerIntf {
+        private final MessageReceiver receiver;
+        private final MessageHandling node; // null when the receiver is no raft node
+
+        LocalController(MessageReceiver receiver) {
+            this.receiver = receiver;
+            this.node = receiver instanceof MessageHandling ? (MessageHandling) receiver : null;
+        }
+
+        public Message deliverMessage(Message message) {
+            return receiver.deliverMessage(message);
+        }
+
+        public GetStateReply getState() {
+            return node == null ? null : node.getState();
+        }
+
+        public StartReply start(int command) {
+            return node == null ? null : node.start(command);
+        }
+
+        public ReadReply read() {
+            return node == null ? null : node.read();
+        }
+
+        public boolean transferLeadership(int target) {
+            return node != null && node.transferLeadership(target);
+        }
+
+        public void snapshot(int index, byte[] snapshot) {
+            if (node != null)
+                node.snapshot(index, snapshot);
+        }
+    }
+}
@@ -1,33 +1,65 @@
 package lib;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Created by lema on 2018/3/12.
+ *
+ * Log holds the raft log semantics (append validation, conflict deletion,
+ * the uncommitted command index), subclasses only decide how the term and
+ * command of each entry are stored. Index 0 is a placeholder, so indexes
+ * never need converting when accessing the log.
+ *
+ * Once the state machine has taken a snapshot, the prefix up to the
+ * snapshot index is discarded. Only lastIncludedIndex/Term of the snapshot
+ * are kept, indexes stay absolute and entries at or below the snapshot index
+ * are no longer in the log.
  */
-public class Log {
+public abstract class Log {
 
-    private ArrayList<LogEntries> logs;
     private int lastIndex = 0;
 
+    // command of every uncommitted entry -> lowest index holding it,
+    // lets the leader detect a re-proposed command without scanning the tail
+    private HashMap<Integer, Integer> uncommitted;
+    private int committedIndex = 0;
+
+    // last index and term covered by the snapshot, everything up to it is discarded
+    private int snapshotIndex = 0;
+    private int snapshotTerm = 0;
+
     public Log() {
-        logs = new ArrayList<>();
-        // placeholder for 0 index, so we don't need to convert index
-        // when accessing the log
-        logs.add(null);
+        uncommitted = new HashMap<>();
     }
 
+    // storage of the backend, indexes are always within snapshotIndex+1..lastIndex
+    // and add is always called with lastIndex + 1
+    protected abstract void add(int term, int index, int command);
+    protected abstract void removeLast();
+    protected abstract int termAt(int index);
+    protected abstract int commandAt(int index);
+    protected abstract void setTermAt(int index, int term);
+    // entries up to index are covered by a snapshot and may be released
+    protected abstract void removePrefix(int index);
+    // drop every entry, the next add is index + 1
+    protected abstract void clear(int index);
 
-    public void dumpEntries() {
-        synchronized(logs) {
-            System.err.println("========================================");
-            for (int i = 0; i < logs.size(); i++) {
-                if (i > 0)
-                    System.err.println("Log Entry " + i + " contains " + 
-                        logs.get(i).getCommand() + " with term: " + logs.get(i).getTerm());
-            }
-            System.err.println("========================================");
+    // entry handed out by getEntry, backends that keep objects can return their own
+    protected LogEntries entryAt(int index) {
+        return new LogEntries(termAt(index), index, commandAt(index));
+    }
+
+
+    public synchronized void dumpEntries() {
+        System.err.println("========================================");
+        System.err.println("Snapshot up to " + snapshotIndex + " with term: " + snapshotTerm);
+        for (int i = snapshotIndex + 1; i <= lastIndex; i++) {
+            System.err.println("Log Entry " + i + " contains " +
+                commandAt(i) + " with term: " + termAt(i));
         }
+        System.err.println("========================================");
     }
     // returns the last log index
     public synchronized int lastEntryIndex() {
@@ -36,65 +68,199 @@ public class Log {
 
     // returns the last log term or -1 if null
     public synchronized int lastEntryTerm() {
-        if (this.lastEntryIndex() > 0) {
-            return this.logs.get(lastIndex).getTerm();
+        if (lastIndex > snapshotIndex) {
+            return termAt(lastIndex);
+        } else if (snapshotIndex > 0) {
+            return snapshotTerm;
         } else return -1;
     }
 
+    public synchronized int getSnapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public synchronized int getSnapshotTerm() {
+        return snapshotTerm;
+    }
+
+    // the term at the snapshot index is still known, below it -1 like a missing entry
     public synchronized int getTermAtIndex(int index) {
-        if (this.lastEntryIndex() <= index) {
-            LogEntries l = this.logs.get(index);
-            return l.getTerm();
+        if (index > snapshotIndex && index <= this.lastEntryIndex()) {
+            return termAt(index);
+        } else if (index == snapshotIndex) {
+            return snapshotTerm;
         } else return -1;
     }
 
+    // first index of the run of entries sharing the term of the entry at index
+    public synchronized int firstIndexOfTerm(int index) {
+        int term = getTermAtIndex(index);
+        while (index - 1 > snapshotIndex && termAt(index - 1) == term)
+            index--;
+        return index;
+    }
+
+    // last index at or below index whose entry has term, or -1
+    // terms grow along the log, so the search stops at the first lower term
+    public synchronized int lastIndexOfTerm(int term, int index) {
+        for (index = Math.min(index, lastIndex); index >= snapshotIndex; index--) {
+            int t = getTermAtIndex(index);
+            if (t == term) return index;
+            if (t < term) return -1;
+        }
+        return -1;
+    }
+
+    // rewrite the term of an entry that is still in the log
+    public synchronized void setTermAtIndex(int index, int term) {
+        if (index > snapshotIndex && index <= lastIndex)
+            setTermAt(index, term);
+    }
+
     public synchronized void deleteConflictingEntries(int index) {
+        // entries covered by the snapshot are committed and never conflict
+        index = Math.max(index, snapshotIndex + 1);
         while (index <= lastIndex) {
-            this.logs.remove(lastIndex);
+            uncommitted.remove(commandAt(lastIndex), lastIndex);
+            removeLast();
             lastIndex--;
         }
     }
 
+    // returns the index of an uncommitted entry holding this command or -1
+    public synchronized int findUncommitted(int command) {
+        Integer index = uncommitted.get(command);
+        return index == null ? -1 : index;
+    }
+
+    // entries up to index are committed, drop them from the uncommitted index
+    public synchronized void commitTo(int index) {
+        index = Math.min(index, lastIndex);
+        for (int i = Math.max(committedIndex, snapshotIndex) + 1; i <= index; i++) {
+            uncommitted.remove(commandAt(i), i);
+        }
+        // a hash map never shrinks, drop the table a long uncommitted tail left behind
+        if (uncommitted.isEmpty() && index > committedIndex)
+            uncommitted = new HashMap<>();
+        committedIndex = Math.max(committedIndex, index);
+    }
+
 
     public synchronized boolean append(LogEntries entry) {
         assert entry != null;
+        return append(entry.getTerm(), entry.getIndex(), entry.getCommand());
+    }
+
+    public synchronized boolean append(int term, int index, int command) {
+        // already covered by the snapshot
+        if (index <= snapshotIndex) return true;
+
         // check if the entry is already in our log
-        if (entry.getIndex() <= lastIndex) {
-            if (entry.getTerm() != logs.get(entry.getIndex()).getTerm()) {
-                deleteConflictingEntries(entry.getIndex());
+        if (index <= lastIndex) {
+            if (term != termAt(index)) {
+                deleteConflictingEntries(index);
             } else {
                 return true; // we already have this entry
             }
         }
 
         // validate that this is an acceptable entry to append next
-        if (lastIndex == 0 || (entry.getIndex() == lastIndex + 1 && entry.getTerm() >= logs.get(lastIndex).getTerm())) {
-            logs.add(entry);
-            lastIndex = entry.getIndex();
+        if (lastIndex == 0 || (index == lastIndex + 1
+                && (lastIndex == snapshotIndex || term >= termAt(lastIndex)))) {
+            add(term, index, command);
+            lastIndex = index;
+            if (lastIndex > committedIndex)
+                uncommitted.putIfAbsent(command, lastIndex);
             return true;
         }
         return false;
     }
 
 
+    // append an entry read back from storage, it was validated when first appended
+    protected synchronized void restore(int term, int index, int command) {
+        add(term, index, command);
+        lastIndex = index;
+        uncommitted.putIfAbsent(command, lastIndex);
+    }
+
+
+    /**
+     * compact - Discard the entries up to index after the state machine
+     * took a snapshot covering them. The index must be committed.
+     *
+     * @param index last index included in the snapshot.
+     */
+    public synchronized void compact(int index) {
+        if (index <= snapshotIndex || index > lastIndex) return;
+        commitTo(index);
+        snapshotTerm = termAt(index);
+        snapshotIndex = index;
+        removePrefix(index);
+    }
+
+    /**
+     * installSnapshot - Make the log start after a snapshot received from the
+     * leader. An entry at the snapshot index with the snapshot term means the
+     * entries after it are still valid and kept, otherwise the whole log is
+     * discarded.
+     *
+     * @param index last index included in the snapshot.
+     * @param term term of that entry.
+     */
+    public synchronized void installSnapshot(int index, int term) {
+        if (index <= snapshotIndex) return;
+        if (index <= lastIndex && termAt(index) == term) {
+            compact(index);
+            return;
+        }
+        startAt(index, term);
+    }
+
+    // empty log starting right after a snapshot
+    protected synchronized void startAt(int index, int term) {
+        uncommitted = new HashMap<>();
+        clear(index);
+        lastIndex = index;
+        committedIndex = index;
+        snapshotIndex = index;
+        snapshotTerm = term;
+    }
+
     public synchronized LogEntries getEntry(int index) {
-        if (logs == null || logs.size() == 0) return null;
-        if (index < 0 || index > this.lastEntryIndex()) return null;
-        return logs.get(index);
+        if (index <= snapshotIndex || index > this.lastEntryIndex()) return null;
+        return entryAt(index);
     }
 
     public synchronized ArrayList<LogEntries> getEntryFrom(int index) {
         if(index < 0 || index > lastEntryIndex()) return null;
         ArrayList<LogEntries> res = new ArrayList<>();
-        for(int i = index; i <= lastEntryIndex(); i++) {
-            res.add(logs.get(i));
+        for(int i = Math.max(index, snapshotIndex + 1); i <= lastEntryIndex(); i++) {
+            res.add(entryAt(i));
         }
         return res;
     }
 
+    // entries from..to (inclusive) packed in the LogRecords layout, null if from is past the end
+    public synchronized byte[] getPackedEntries(int from, int to) {
+        from = Math.max(from, snapshotIndex + 1);
+        to = Math.min(to, lastIndex);
+        if (from > to) return null;
+        ByteBuffer buf = ByteBuffer.allocate((to - from + 1) * LogRecords.RECORD_SIZE);
+        packEntries(from, to, buf);
+        return buf.array();
+    }
+
+    // backends that already hold records can copy them instead of encoding each entry
+    protected void packEntries(int from, int to, ByteBuffer dst) {
+        for (int i = from; i <= to; i++) {
+            LogRecords.put(dst, termAt(i), i, commandAt(i));
+        }
+    }
+
     public synchronized int getLastTerm() {
         // System.err.print("Current index:" + this.lastEntryIndex());
-        if(lastEntryIndex() <= 0) return 0;
-        return getEntry(lastIndex).getTerm();
+        if(lastEntryIndex() <= snapshotIndex) return snapshotTerm;
+        return termAt(lastIndex);
     }
 }
@@ -0,0 +1,50 @@
+package lib;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * LogRecords - The fixed size record layout shared by the write-ahead log
+ * files and the entries of AppendEntriesArg: term, index, command and a
+ * crc32 of the first three, 4 bytes each, big endian. Because both use the
+ * same layout, a range of entries can be copied from a segment file into a
+ * message without decoding it.
+ */
+public class LogRecords {
+
+    public static final int RECORD_SIZE = 16;
+
+    private LogRecords() {}
+
+    // crc32 of the 12 data bytes of the record starting at base
+    private static int checksum(ByteBuffer buf, int base) {
+        ByteBuffer data = buf.duplicate();
+        data.clear();
+        data.position(base);
+        data.limit(base + 12);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    // write one record at the buffer position
+    public static void put(ByteBuffer dst, int term, int index, int command) {
+        int base = dst.position();
+        dst.putInt(term).putInt(index).putInt(command);
+        dst.putInt(checksum(dst, base));
+    }
+
+    // accessors for the i-th record of a packed buffer, relative to offset
+    public static int term(ByteBuffer src, int offset, int i) { return src.getInt(offset + i * RECORD_SIZE); }
+    public static int index(ByteBuffer src, int offset, int i) { return src.getInt(offset + i * RECORD_SIZE + 4); }
+    public static int command(ByteBuffer src, int offset, int i) { return src.getInt(offset + i * RECORD_SIZE + 8); }
+
+    public static boolean valid(ByteBuffer src, int offset, int i) {
+        int base = offset + i * RECORD_SIZE;
+        return src.getInt(base + 12) == checksum(src, base);
+    }
+
+    public static int count(byte[] packed) {
+        return packed == null ? 0 : packed.length / RECORD_SIZE;
+    }
+}
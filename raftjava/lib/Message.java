@@ -23,6 +23,10 @@ public class Message implements Serializable {
          * Indicates the message type.
          */
         private MessageType type;
+        /**
+         * Indicates the raft group, when one host runs many (see GroupTransport).
+         */
+        private int group;
         /**
          * The payload of the message packet, fill what you need to send here!
          */
@@ -37,9 +41,23 @@ public class Message implements Serializable {
          * @param body payload
          */
         public Message(MessageType type, int src_addr, int dest_addr, byte[] body) {
+            this(type, src_addr, dest_addr, 0, body);
+        }
+
+        /**
+         * Message - Construct a message for one raft group of a host.
+         *
+         * @param type the message type
+         * @param src_addr source
+         * @param dest_addr destination
+         * @param group the raft group
+         * @param body payload
+         */
+        public Message(MessageType type, int src_addr, int dest_addr, int group, byte[] body) {
             this.type = type;
             this.src_addr = src_addr;
             this.dest_addr = dest_addr;
+            this.group = group;
             this.body = body;
         }
 
@@ -51,6 +69,10 @@ public class Message implements Serializable {
             return this.dest_addr;
         }
 
+        public int getGroup() {
+            return this.group;
+        }
+
         public byte[] getBody() {
             return this.body;
         }
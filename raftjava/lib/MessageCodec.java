@@ -0,0 +1,286 @@
+package lib;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * MessageCodec - Hand written binary encoding of the raft message bodies,
+ * used instead of SerializationUtils for every RPC. Java serialization
+ * writes class descriptors and builds object streams for each message,
+ * this writes only the fields.
+ *
+ * A body starts with a fixed one byte tag naming its class, followed by the
+ * fields in declaration order. Ints are zigzag varints, so small terms and
+ * indexes take one or two bytes and -1 takes one. Byte arrays are a varint
+ * length (0 for null, length + 1 otherwise) and the raw bytes, the packed
+ * entries of AppendEntriesArg are copied as one block in the LogRecords
+ * layout without decoding them.
+ */
+public class MessageCodec {
+
+    private static final byte REQUEST_VOTE_ARGS = 1;
+    private static final byte REQUEST_VOTE_REPLY = 2;
+    private static final byte APPEND_ENTRIES_ARG = 3;
+    private static final byte APPEND_ENTRIES_REPLY = 4;
+    private static final byte INSTALL_SNAPSHOT_ARGS = 5;
+    private static final byte INSTALL_SNAPSHOT_REPLY = 6;
+    private static final byte TIMEOUT_NOW_ARGS = 7;
+    private static final byte TIMEOUT_NOW_REPLY = 8;
+    private static final byte HEARTBEAT_BATCH = 9;
+
+    private MessageCodec() {}
+
+    /**
+     * encode - Encode one of the raft message classes.
+     *
+     * @param obj the message body.
+     * @return the encoded bytes.
+     * @throws IllegalArgumentException for a class the codec does not know.
+     */
+    public static byte[] encode(Object obj) {
+        if (obj instanceof AppendEntriesArg) {
+            AppendEntriesArg a = (AppendEntriesArg) obj;
+            byte[] entries = a.getPackedEntries();
+            Writer w = new Writer(32 + (entries == null ? 0 : entries.length));
+            w.tag(APPEND_ENTRIES_ARG);
+            w.varint(a.getTerm());
+            w.varint(a.getLeaderId());
+            w.varint(a.getPrevLogIndex());
+            w.varint(a.getPrevLogTerm());
+            w.bytes(entries);
+            w.varint(a.getLeaderCommit());
+            return w.toByteArray();
+        } else if (obj instanceof AppendEntriesReply) {
+            AppendEntriesReply r = (AppendEntriesReply) obj;
+            Writer w = new Writer(24);
+            w.tag(APPEND_ENTRIES_REPLY);
+            w.varint(r.getTerm());
+            w.bool(r.isSuccess());
+            w.varint(r.getConflictIndex());
+            w.varint(r.getConflictTerm());
+            w.varint(r.getLastIndex());
+            return w.toByteArray();
+        } else if (obj instanceof RequestVoteArgs) {
+            RequestVoteArgs a = (RequestVoteArgs) obj;
+            Writer w = new Writer(24);
+            w.tag(REQUEST_VOTE_ARGS);
+            w.varint(a.getTerm());
+            w.varint(a.getCandidateId());
+            w.varint(a.getLastLogIndex());
+            w.varint(a.getLastLogTerm());
+            w.bool(a.isLeadershipTransfer());
+            return w.toByteArray();
+        } else if (obj instanceof RequestVoteReply) {
+            RequestVoteReply r = (RequestVoteReply) obj;
+            Writer w = new Writer(8);
+            w.tag(REQUEST_VOTE_REPLY);
+            w.varint(r.getTerm());
+            w.bool(r.isVoteGranted());
+            return w.toByteArray();
+        } else if (obj instanceof InstallSnapshotArgs) {
+            InstallSnapshotArgs a = (InstallSnapshotArgs) obj;
+            Writer w = new Writer(32 + (a.getData() == null ? 0 : a.getData().length));
+            w.tag(INSTALL_SNAPSHOT_ARGS);
+            w.varint(a.getTerm());
+            w.varint(a.getLeaderId());
+            w.varint(a.getLastIncludedIndex());
+            w.varint(a.getLastIncludedTerm());
+            w.varint(a.getOffset());
+            w.bytes(a.getData());
+            w.bool(a.isDone());
+            return w.toByteArray();
+        } else if (obj instanceof InstallSnapshotReply) {
+            InstallSnapshotReply r = (InstallSnapshotReply) obj;
+            Writer w = new Writer(8);
+            w.tag(INSTALL_SNAPSHOT_REPLY);
+            w.varint(r.getTerm());
+            w.bool(r.isSuccess());
+            return w.toByteArray();
+        } else if (obj instanceof TimeoutNowArgs) {
+            TimeoutNowArgs a = (TimeoutNowArgs) obj;
+            Writer w = new Writer(12);
+            w.tag(TIMEOUT_NOW_ARGS);
+            w.varint(a.getTerm());
+            w.varint(a.getLeaderId());
+            return w.toByteArray();
+        } else if (obj instanceof TimeoutNowReply) {
+            TimeoutNowReply r = (TimeoutNowReply) obj;
+            Writer w = new Writer(8);
+            w.tag(TIMEOUT_NOW_REPLY);
+            w.varint(r.getTerm());
+            w.bool(r.isSuccess());
+            return w.toByteArray();
+        } else if (obj instanceof HeartbeatBatch) {
+            HeartbeatBatch b = (HeartbeatBatch) obj;
+            Writer w = new Writer(8 + b.size() * 24);
+            w.tag(HEARTBEAT_BATCH);
+            w.varint(b.size());
+            for (int i = 0; i < b.size(); i++) {
+                w.varint(b.getGroup(i));
+                w.bytes(b.getBody(i));
+            }
+            return w.toByteArray();
+        }
+        throw new IllegalArgumentException("cannot encode " + (obj == null ? null : obj.getClass()));
+    }
+
+    /**
+     * decode - Decode a body produced by encode, the tag decides the class.
+     *
+     * @param bytes the encoded bytes.
+     * @return the message body.
+     * @throws IOException when the bytes are truncated or malformed, or the tag
+     *                     is unknown.
+     */
+    public static Object decode(byte[] bytes) throws IOException {
+        if (bytes == null || bytes.length == 0)
+            throw new IOException("empty message body");
+
+        Reader r = new Reader(bytes);
+        Object res;
+        switch (r.tag()) {
+            case APPEND_ENTRIES_ARG:
+                int term = r.varint(), leaderId = r.varint(), prevLogIndex = r.varint(), prevLogTerm = r.varint();
+                byte[] entries = r.bytes();
+                // the follower reads the entries as whole LogRecords records
+                if (entries != null && entries.length % LogRecords.RECORD_SIZE != 0)
+                    throw new IOException("entries of " + entries.length + " bytes are not whole records");
+                res = new AppendEntriesArg(term, leaderId, prevLogIndex, prevLogTerm, entries, r.varint());
+                break;
+            case APPEND_ENTRIES_REPLY:
+                res = new AppendEntriesReply(r.varint(), r.bool(), r.varint(), r.varint(), r.varint());
+                break;
+            case REQUEST_VOTE_ARGS:
+                res = new RequestVoteArgs(r.varint(), r.varint(), r.varint(), r.varint(), r.bool());
+                break;
+            case REQUEST_VOTE_REPLY:
+                res = new RequestVoteReply(r.varint(), r.bool());
+                break;
+            case INSTALL_SNAPSHOT_ARGS:
+                res = new InstallSnapshotArgs(r.varint(), r.varint(), r.varint(), r.varint(), r.varint(),
+                        r.bytes(), r.bool());
+                break;
+            case INSTALL_SNAPSHOT_REPLY:
+                res = new InstallSnapshotReply(r.varint(), r.bool());
+                break;
+            case TIMEOUT_NOW_ARGS:
+                res = new TimeoutNowArgs(r.varint(), r.varint());
+                break;
+            case TIMEOUT_NOW_REPLY:
+                res = new TimeoutNowReply(r.varint(), r.bool());
+                break;
+            case HEARTBEAT_BATCH:
+                int n = r.varint();
+                r.need(n);  // at least a byte per entry, before allocating for them
+                int[] groups = new int[n];
+                byte[][] bodies = new byte[n][];
+                for (int i = 0; i < n; i++) {
+                    groups[i] = r.varint();
+                    bodies[i] = r.bytes();
+                }
+                res = new HeartbeatBatch(groups, bodies);
+                break;
+            default:
+                throw new IOException("unknown message tag " + bytes[0]);
+        }
+        if (r.pos != bytes.length)
+            throw new IOException((bytes.length - r.pos) + " trailing bytes after message");
+        return res;
+    }
+
+    private static class Writer {
+        private byte[] buf;
+        private int pos;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        void tag(byte tag) {
+            ensure(1);
+            buf[pos++] = tag;
+        }
+
+        void bool(boolean b) {
+            ensure(1);
+            buf[pos++] = (byte) (b ? 1 : 0);
+        }
+
+        // zigzag, then 7 bits per byte with the high bit marking more to come
+        void varint(int v) {
+            ensure(5);
+            int z = (v << 1) ^ (v >> 31);
+            while ((z & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((z & 0x7F) | 0x80);
+                z >>>= 7;
+            }
+            buf[pos++] = (byte) z;
+        }
+
+        void bytes(byte[] b) {
+            if (b == null) {
+                varint(0);
+                return;
+            }
+            varint(b.length + 1);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        byte[] toByteArray() {
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private void need(int n) throws IOException {
+            if (n < 0 || pos + n > buf.length)
+                throw new IOException("truncated message body");
+        }
+
+        byte tag() throws IOException {
+            need(1);
+            return buf[pos++];
+        }
+
+        boolean bool() throws IOException {
+            need(1);
+            return buf[pos++] != 0;
+        }
+
+        int varint() throws IOException {
+            int z = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                need(1);
+                byte b = buf[pos++];
+                z |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    return (z >>> 1) ^ -(z & 1);
+            }
+            throw new IOException("malformed varint");
+        }
+
+        byte[] bytes() throws IOException {
+            int len = varint();
+            if (len == 0) return null;
+            len--;
+            need(len);
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return b;
+        }
+    }
+}
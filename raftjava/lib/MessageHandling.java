@@ -1,20 +1,12 @@
 package lib;
 
 /**
- * This Interface is to define the basic API for a raft node.
+ * This Interface is to define the basic API for a raft node. Messages are
+ * delivered to it through MessageReceiver.deliverMessage.
  *
  * @author Sphoorti Joglekar, Priya Avhad, Yijia Cui, Zonglin Wang
  */
-public interface MessageHandling {
-    /**
-     * This API is the callback for the network to deliver a message to a raft
-     * node, all the message packet will eventually be delivered to target node
-     * from the sender if you call sendMessage() method of TransportLib.
-     *
-     * @param message the message this node receives.
-     * @return the respond message packet.
-     */
-    public Message deliverMessage(Message message);
+public interface MessageHandling extends MessageReceiver {
     /**
      * This API is to return the current node status required in GetStateReply
      * class, the testing framework may call this function at any time to check
@@ -31,4 +23,33 @@ public interface MessageHandling {
      * @return the information packet of this agreement.
      */
     public StartReply start(int command);
+    /**
+     * This API is for a linearizable read that does not go through the log.
+     * The leader confirms it still leads and returns once it has applied
+     * everything committed when the read arrived, the state machine may then
+     * serve the read from its current state.
+     *
+     * @return the read index, or -1 with the leader flag unset if this node
+     * cannot serve reads.
+     */
+    public ReadReply read();
+    /**
+     * This API is to hand the leadership over to another node, for example
+     * before restarting the leader. The leader stops taking new entries,
+     * brings the target up to date and tells it to start an election at once.
+     *
+     * @param target the node to become leader.
+     * @return true if this node stepped down for the target, false if it is
+     * not the leader or the transfer did not complete in time, the node then
+     * keeps leading.
+     */
+    public boolean transferLeadership(int target);
+    /**
+     * This API is for the state machine to hand over a snapshot of its state,
+     * the node may then discard its log up to the index.
+     *
+     * @param index the last log index applied to the snapshot.
+     * @param snapshot the state machine state.
+     */
+    public void snapshot(int index, byte[] snapshot);
 }
@@ -0,0 +1,18 @@
+package lib;
+
+/**
+ * This Interface is the part of MessageHandling the network calls: whatever
+ * receives the messages sent to an id, a raft node or a host handing them to
+ * the raft groups it runs.
+ */
+public interface MessageReceiver {
+    /**
+     * This API is the callback for the network to deliver a message to a raft
+     * node, all the message packet will eventually be delivered to target node
+     * from the sender if you call sendMessage() method of TransportLib.
+     *
+     * @param message the message this node receives.
+     * @return the respond message packet.
+     */
+    public Message deliverMessage(Message message);
+}
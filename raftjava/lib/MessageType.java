@@ -7,4 +7,6 @@ package lib;
  */
 public enum MessageType {
     RequestVoteArgs, RequestVoteReply, AppendEntriesArg, AppendEntriesReply,
+    InstallSnapshotArgs, InstallSnapshotReply, PreVoteArgs, PreVoteReply,
+    TimeoutNow, TimeoutNowReply, Heartbeats, HeartbeatsReply,
 }
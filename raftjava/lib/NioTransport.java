@@ -0,0 +1,437 @@
+package lib;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioTransport - Direct peer to peer messaging over non-blocking sockets,
+ * replacing the hop through the Controller. Every node listens on its own
+ * address and keeps one persistent connection to each peer it sends to, the
+ * peer answers on that same connection. A single selector thread does all
+ * socket IO, incoming requests are handed to worker threads because the
+ * handlers may block.
+ *
+ * A frame is a 4 byte length followed by the kind (request, reply or no
+ * reply), an 8 byte correlation id and the message: type, source,
+ * destination, group and the body, its length -1 for null.
+ *
+ * send keeps the contract of TransportLib.sendMessage: it blocks until the
+ * reply and returns null when the peer is unreachable or does not answer
+ * within the timeout. sendAsync is the non-blocking form, no thread waits
+ * for a request in flight.
+ */
+public class NioTransport {
+
+    private static final byte REQUEST = 0;
+    private static final byte REPLY = 1;
+    private static final byte NO_REPLY = 2;
+
+    // kind, correlation id, type, src, dest, group, body length
+    private static final int HEADER = 1 + 8 + 1 + 4 + 4 + 4 + 4;
+    private static final int MAX_FRAME = 64 << 20;
+    // the type byte of a frame is an ordinal of this
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    // a peer that refused a connection is not retried for this long
+    private static final long RECONNECT_MILLIS = 100;
+
+    private final int id;
+    private final InetSocketAddress[] peers;
+    private final MessageReceiver handler;
+    private final long timeoutMillis;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    private volatile boolean open = true;
+
+    private final Connection[] outbound;
+    private final long[] lastFailure;
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+
+    // work for the selector thread: channels to register and connections with output
+    private final ConcurrentLinkedQueue<Connection> toRegister = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Connection> toFlush = new ConcurrentLinkedQueue<>();
+
+    /**
+     * NioTransport - Listen on peers[id] and start the selector thread.
+     *
+     * @param id the id of this node
+     * @param peers the address of every node, by id
+     * @param handler receives the requests of the peers, null to only send
+     * @param timeoutMillis how long send waits for a reply
+     * @throws IOException when the address cannot be bound
+     */
+    public NioTransport(int id, InetSocketAddress[] peers, MessageReceiver handler, long timeoutMillis)
+            throws IOException {
+        this.id = id;
+        this.peers = peers;
+        this.handler = handler;
+        this.timeoutMillis = timeoutMillis;
+        this.outbound = new Connection[peers.length];
+        this.lastFailure = new long[peers.length];
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(peers[id]);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Nio-Worker-" + id);
+            t.setDaemon(true);
+            return t;
+        });
+
+        Thread t = new Thread(this::run, "Nio-Selector-" + id);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * send - Send a request to message.getDest() and wait for its reply.
+     *
+     * @param message the request
+     * @return the reply, or null when there is none within the timeout
+     */
+    public Message send(Message message) {
+        CompletableFuture<Message> reply = sendAsync(message);
+        try {
+            return reply.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } finally {
+            reply.cancel(false);
+        }
+    }
+
+    /**
+     * sendAsync - Send a request to message.getDest() without waiting. The
+     * future completes on a worker thread, never in the caller, with the
+     * reply or with null when the peer is unreachable or sends none.
+     * Completing or cancelling it forgets the request, a reply arriving
+     * later is dropped. It has no timeout of its own.
+     *
+     * @param message the request
+     * @return the future reply
+     */
+    public CompletableFuture<Message> sendAsync(Message message) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        int dest = message.getDest();
+        Connection c = dest < 0 || dest >= peers.length || dest == id ? null : connection(dest);
+        if (c == null) {
+            complete(reply, null);
+            return reply;
+        }
+
+        long cid = nextCorrelationId.incrementAndGet();
+        c.pending.put(cid, reply);
+        reply.whenComplete((r, e) -> c.pending.remove(cid));
+        // the connection may have failed before the request was recorded
+        if (c.closed) {
+            complete(reply, null);
+            return reply;
+        }
+        c.enqueue(frame(REQUEST, cid, message));
+        return reply;
+    }
+
+    // callbacks on the future may block, keep them off the selector thread
+    private void complete(CompletableFuture<Message> f, Message m) {
+        try {
+            workers.execute(() -> f.complete(m));
+        } catch (RejectedExecutionException e) {
+            f.complete(m);
+        }
+    }
+
+    // the live connection to a peer, opening one if needed
+    private synchronized Connection connection(int peer) {
+        Connection c = outbound[peer];
+        if (c != null && !c.closed)
+            return c;
+        if (System.currentTimeMillis() - lastFailure[peer] < RECONNECT_MILLIS)
+            return null;
+
+        try {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.connect(peers[peer]);
+            c = new Connection(ch, peer);
+            outbound[peer] = c;
+            toRegister.add(c);
+            selector.wakeup();
+            return c;
+        } catch (IOException e) {
+            lastFailure[peer] = System.currentTimeMillis();
+            return null;
+        }
+    }
+
+    /**
+     * parseAddresses - Parse a comma separated list of host:port.
+     *
+     * @param list the addresses, the node with id i at position i
+     * @return the parsed addresses
+     */
+    public static InetSocketAddress[] parseAddresses(String list) {
+        String[] parts = list.split(",");
+        InetSocketAddress[] res = new InetSocketAddress[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i].trim();
+            int colon = p.lastIndexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("expected host:port, got " + p);
+            res[i] = new InetSocketAddress(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1)));
+        }
+        return res;
+    }
+
+    public void close() {
+        open = false;
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            while (open) {
+                selector.select();
+
+                Connection c;
+                while ((c = toRegister.poll()) != null) {
+                    try {
+                        int ops = c.channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+                        c.key = c.channel.register(selector, ops, c);
+                    } catch (ClosedChannelException e) {
+                        c.close();
+                    }
+                }
+                while ((c = toFlush.poll()) != null) {
+                    if (c.key != null && c.key.isValid() && (c.key.interestOps() & SelectionKey.OP_CONNECT) == 0)
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            conn.channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                        if (key.isValid() && key.isReadable())
+                            conn.read();
+                        if (key.isValid() && key.isWritable())
+                            conn.write();
+                    } catch (IOException | RuntimeException e) {
+                        // whatever a peer sent, only its connection fails
+                        if (conn.peer >= 0) {
+                            synchronized (this) {
+                                lastFailure[conn.peer] = System.currentTimeMillis();
+                            }
+                        }
+                        conn.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                }
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection c = new Connection(ch, -1);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private static ByteBuffer frame(byte kind, long cid, Message m) {
+        byte[] body = m == null ? null : m.getBody();
+        int len = HEADER + (body == null ? 0 : body.length);
+        ByteBuffer buf = ByteBuffer.allocate(4 + len);
+        buf.putInt(len);
+        buf.put(kind);
+        buf.putLong(cid);
+        if (m == null) {
+            buf.put((byte) -1).putInt(-1).putInt(-1).putInt(0).putInt(-1);
+        } else {
+            buf.put(m.getType() == null ? -1 : (byte) m.getType().ordinal());
+            buf.putInt(m.getSrc());
+            buf.putInt(m.getDest());
+            buf.putInt(m.getGroup());
+            buf.putInt(body == null ? -1 : body.length);
+            if (body != null) buf.put(body);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // one frame, without its length prefix; a malformed frame fails only its connection
+    private void received(Connection c, ByteBuffer f) throws IOException {
+        byte kind = f.get();
+        long cid = f.getLong();
+        byte type = f.get();
+        int src = f.getInt();
+        int dest = f.getInt();
+        int group = f.getInt();
+        int bodyLen = f.getInt();
+        if (type >= MESSAGE_TYPES.length)
+            throw new IOException("unknown message type " + type);
+        if (bodyLen > f.remaining())
+            throw new IOException("body of " + bodyLen + " bytes in a frame of " + f.remaining());
+        byte[] body = null;
+        if (bodyLen >= 0) {
+            body = new byte[bodyLen];
+            f.get(body);
+        }
+        Message m = new Message(type < 0 ? null : MESSAGE_TYPES[type], src, dest, group, body);
+
+        if (kind == REQUEST) {
+            workers.execute(() -> {
+                Message reply = null;
+                try {
+                    if (handler != null)
+                        reply = handler.deliverMessage(m);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                c.enqueue(frame(reply == null ? NO_REPLY : REPLY, cid, reply));
+            });
+        } else {
+            CompletableFuture<Message> waiting = c.pending.get(cid);
+            if (waiting != null)
+                complete(waiting, kind == REPLY ? m : null);
+        }
+    }
+
+    /**
+     * Connection - One socket, outbound to a peer or accepted from one.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final int peer;  // -1 for accepted connections
+        SelectionKey key;
+        volatile boolean closed;
+
+        // requests sent on this connection waiting for their reply
+        final Map<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+        private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+        Connection(SocketChannel channel, int peer) {
+            this.channel = channel;
+            this.peer = peer;
+        }
+
+        void enqueue(ByteBuffer frame) {
+            if (closed) return;
+            synchronized (writes) {
+                writes.add(frame);
+            }
+            toFlush.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            synchronized (writes) {
+                while (!writes.isEmpty()) {
+                    ByteBuffer b = writes.peek();
+                    channel.write(b);
+                    if (b.hasRemaining())
+                        return; // socket buffer full, keep OP_WRITE
+                    writes.poll();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0)
+                throw new IOException("connection closed by peer");
+            in.flip();
+            while (in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                if (len < HEADER || len > MAX_FRAME)
+                    throw new IOException("bad frame length " + len);
+                if (in.remaining() < 4 + len) {
+                    if (4 + len > in.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + len);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                ByteBuffer f = in.slice();
+                f.limit(len);
+                in.position(in.position() + len);
+                received(this, f);
+            }
+            in.compact();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already broken
+            }
+            // nobody will answer what is still outstanding
+            for (CompletableFuture<Message> f : pending.values())
+                complete(f, null);
+        }
+    }
+}
@@ -1,45 +1,181 @@
 package lib;
 
-import java.util.ArrayList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Created by lema on 2018/3/9.
+ *
+ * Without a data directory the state only lives in memory. With one, the log
+ * is a DurableLog under dir/log and currentTerm/votedFor are kept in
+ * dir/meta, both read back when the state is constructed.
+ *
+ * The latest snapshot is kept here as well, in dir/snapshot when durable.
+ * It is always saved before the log drops the entries it covers.
  */
 public class PersistentState {
 
-    private int currentTerm;
-    private int votedFor = -1;
-    private Log log;
+    // entries per log segment file, 1M entries is 16MB of records
+    private static final int ENTRIES_PER_SEGMENT = 1 << 20;
+
+    // volatile so that reading them takes no lock, writes are
+    // synchronized and saved before they return
+    private volatile int currentTerm;
+    private volatile int votedFor = -1;
+    private volatile Log log;
+
+    private volatile Snapshot snapshot = new Snapshot(0, 0, null);
+
+    private File metaFile;
+    private File snapshotFile;
+    private DurableLog durableLog;
 
     public PersistentState() {
-        log = new Log();
+        log = new ChunkedLog();
         // starting with term 1
         currentTerm = 1;
     }
 
+    public PersistentState(File dir, boolean fsync) throws IOException {
+        this();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+
+        metaFile = new File(dir, "meta");
+        if (metaFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(metaFile))) {
+                currentTerm = in.readInt();
+                votedFor = in.readInt();
+            }
+        }
+
+        snapshotFile = new File(dir, "snapshot");
+        if (snapshotFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(snapshotFile))) {
+                int index = in.readInt();
+                int term = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                snapshot = new Snapshot(index, term, data);
+            }
+        }
+
+        durableLog = new DurableLog(new WriteAheadLog(new File(dir, "log"), ENTRIES_PER_SEGMENT, fsync),
+                snapshot.getLastIncludedIndex(), snapshot.getLastIncludedTerm());
+        log = durableLog;
+    }
+
+    /**
+     * Writes the content of a file at once.
+     */
+    private interface ContentWriter {
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    // write to a temp file and rename it over the old one,
+    // so a crash leaves either the old or the new content
+    private static void replaceFile(File file, ContentWriter writer) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(fos)) {
+                writer.write(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void saveMeta() {
+        if (metaFile == null) return;
+        replaceFile(metaFile, out -> {
+            out.writeInt(currentTerm);
+            out.writeInt(votedFor);
+        });
+    }
+
     // access to persist state variables need to be 
     // thread-safe
 
-    public synchronized int getCurrentTerm() {
+    public int getCurrentTerm() {
         return currentTerm;
     }
 
     public synchronized void setCurrentTerm(int currentTerm) {
+        if (this.currentTerm == currentTerm) return;
         this.currentTerm = currentTerm;
+        saveMeta();
     }
 
-    public synchronized int getVotedFor() {
+    public int getVotedFor() {
         return votedFor;
     }
 
     public synchronized void setVotedFor(int votedFor) {
+        if (this.votedFor == votedFor) return;
         this.votedFor = votedFor;
+        saveMeta();
     }
 
-    public synchronized Log getLog() {
+    // change both in one write, a crash never leaves the new term with the old vote
+    public synchronized void setTermAndVote(int currentTerm, int votedFor) {
+        if (this.currentTerm == currentTerm && this.votedFor == votedFor) return;
+        this.currentTerm = currentTerm;
+        this.votedFor = votedFor;
+        saveMeta();
+    }
+
+    public Log getLog() {
         return log;
     }
 
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
 
+    // keep a newer snapshot, the caller discards the log prefix it covers afterwards
+    public synchronized void setSnapshot(Snapshot snapshot) {
+        if (snapshot.getLastIncludedIndex() <= this.snapshot.getLastIncludedIndex()) return;
+        if (snapshotFile != null) {
+            replaceFile(snapshotFile, out -> {
+                out.writeInt(snapshot.getLastIncludedIndex());
+                out.writeInt(snapshot.getLastIncludedTerm());
+                out.writeInt(snapshot.getData().length);
+                out.write(snapshot.getData());
+            });
+        }
+        this.snapshot = snapshot;
+    }
 
+    public boolean isDurable() {
+        return durableLog != null;
+    }
+
+    // make every log entry appended so far durable, concurrent callers share one fsync
+    public void sync() throws IOException {
+        if (durableLog != null)
+            durableLog.sync();
+    }
+
+    // highest log index that survives a crash
+    public int getDurableIndex() {
+        return durableLog != null ? durableLog.getSyncedIndex() : log.lastEntryIndex();
+    }
+
+    // release the log files, so another PersistentState can open the directory
+    public void close() {
+        if (durableLog != null)
+            durableLog.close();
+    }
 }
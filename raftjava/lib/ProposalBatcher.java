@@ -0,0 +1,147 @@
+package lib;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * ProposalBatcher - Gathers concurrent start() calls into one batch, so the
+ * leader appends them to its log together and replicates them in a single
+ * round instead of one round per command.
+ *
+ * The first proposal of a batch waits up to the window for others to join,
+ * a batch that reaches the size threshold is flushed right away by the
+ * proposal that filled it.
+ */
+public class ProposalBatcher {
+
+    public enum FlushReason {
+        SIZE, WINDOW,
+    }
+
+    /**
+     * Callback that appends a whole batch, returns one reply per command.
+     */
+    public interface BatchHandler {
+        public StartReply[] appendBatch(int[] commands, int count);
+    }
+
+    private final long windowMillis;
+    private final int maxBatch;
+    private final BatchHandler handler;
+
+    private Batch current;
+
+    // metrics
+    private long batches;
+    private long proposals;
+    private int maxBatchSeen;
+    private final Map<FlushReason, Long> flushes = new EnumMap<>(FlushReason.class);
+
+    public ProposalBatcher(long windowMillis, int maxBatch, BatchHandler handler) {
+        this.windowMillis = windowMillis;
+        this.maxBatch = Math.max(maxBatch, 1);
+        this.handler = handler;
+        for (FlushReason r : FlushReason.values())
+            flushes.put(r, 0L);
+    }
+
+    /**
+     * propose - Add a command to the current batch and block until the batch
+     * has been appended.
+     *
+     * @param command the command to append.
+     * @return the reply for this command.
+     */
+    public StartReply propose(int command) throws InterruptedException {
+        Batch b;
+        int slot;
+        FlushReason reason = null;
+
+        synchronized (this) {
+            if (current == null)
+                current = new Batch(maxBatch);
+            b = current;
+            slot = b.count;
+            b.commands[b.count++] = command;
+
+            if (b.count >= maxBatch) {
+                reason = FlushReason.SIZE;
+            } else if (slot == 0) {
+                // first one in, hold the batch open for the window
+                long deadline = System.currentTimeMillis() + windowMillis;
+                long remaining = windowMillis;
+                while (!b.closed && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (!b.closed)
+                    reason = FlushReason.WINDOW;
+            }
+
+            if (reason != null) {
+                // detach it so new proposals start the next batch during the flush
+                b.closed = true;
+                current = null;
+                record(b.count, reason);
+            }
+        }
+
+        if (reason != null) {
+            StartReply[] replies = null;
+            try {
+                replies = handler.appendBatch(b.commands, b.count);
+            } finally {
+                if (replies == null) {
+                    // the handler failed, do not leave the other proposers hanging
+                    replies = new StartReply[b.count];
+                    for (int i = 0; i < b.count; i++)
+                        replies[i] = new StartReply(-1, -1, false);
+                }
+            }
+            synchronized (this) {
+                b.replies = replies;
+                notifyAll();
+            }
+        }
+
+        synchronized (this) {
+            while (b.replies == null)
+                wait();
+        }
+        return b.replies[slot];
+    }
+
+    private void record(int size, FlushReason reason) {
+        batches++;
+        proposals += size;
+        maxBatchSeen = Math.max(maxBatchSeen, size);
+        flushes.put(reason, flushes.get(reason) + 1);
+    }
+
+    public synchronized long getBatchCount() { return batches; }
+    public synchronized long getProposalCount() { return proposals; }
+    public synchronized int getMaxBatchSize() { return maxBatchSeen; }
+    public synchronized long getFlushCount(FlushReason reason) { return flushes.get(reason); }
+
+    public synchronized double getAverageBatchSize() {
+        return batches == 0 ? 0 : (double) proposals / batches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batches: " + batches + " proposals: " + proposals
+                + " avg size: " + String.format("%.2f", getAverageBatchSize())
+                + " max size: " + maxBatchSeen + " flushes: " + flushes;
+    }
+
+    private static class Batch {
+        final int[] commands;
+        int count;
+        boolean closed;
+        StartReply[] replies;
+
+        Batch(int capacity) {
+            commands = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package lib;
+
+/**
+ * QuorumTracker - The match index of every node of a cluster, and the
+ * highest index a majority of them has reached, which is what the leader
+ * may commit.
+ *
+ * The indexes are also kept in ascending order, an update moves a single
+ * value to its new place, so the quorum index is read in constant time
+ * and an update costs at most one shift of the array, with no allocation.
+ */
+public class QuorumTracker {
+
+    private final int[] match;   // by node id
+    private final int[] sorted;  // the same values, ascending
+    private final int quorumPos; // position in sorted of the quorum index
+
+    /**
+     * QuorumTracker - A tracker with every match index at 0.
+     *
+     * @param numNodes the number of nodes in the cluster, the leader included
+     */
+    public QuorumTracker(int numNodes) {
+        match = new int[numNodes];
+        sorted = new int[numNodes];
+        // a majority holds every value from this position upwards
+        quorumPos = numNodes - (numNodes / 2 + 1);
+    }
+
+    /**
+     * update - Set the match index of a node, it may go down as well as up.
+     *
+     * @param node the node id
+     * @param index the node's new match index
+     */
+    public synchronized void update(int node, int index) {
+        int old = match[node];
+        if (old == index) return;
+        match[node] = index;
+
+        // find a slot holding the old value, then slide it towards its new place
+        int i = indexOf(old);
+        if (index > old) {
+            while (i + 1 < sorted.length && sorted[i + 1] < index) {
+                sorted[i] = sorted[i + 1];
+                i++;
+            }
+        } else {
+            while (i > 0 && sorted[i - 1] > index) {
+                sorted[i] = sorted[i - 1];
+                i--;
+            }
+        }
+        sorted[i] = index;
+    }
+
+    /**
+     * advance - Raise the match index of a node, an ack that arrives out of
+     * order and carries a lower index leaves it as it is.
+     *
+     * @param node the node id
+     * @param index the index the node acknowledged
+     * @return the quorum index afterwards
+     */
+    public synchronized int advance(int node, int index) {
+        if (index > match[node])
+            update(node, index);
+        return sorted[quorumPos];
+    }
+
+    /**
+     * get - The match index of a node.
+     *
+     * @param node the node id
+     * @return its match index
+     */
+    public synchronized int get(int node) {
+        return match[node];
+    }
+
+    /**
+     * quorumIndex - The highest index that a majority of the nodes has reached.
+     *
+     * @return the quorum index
+     */
+    public synchronized int quorumIndex() {
+        return sorted[quorumPos];
+    }
+
+    /**
+     * hasQuorum - Whether a majority of the nodes has reached index.
+     *
+     * @param index the log index
+     * @return true if the quorum index is at least index
+     */
+    public synchronized boolean hasQuorum(int index) {
+        return sorted[quorumPos] >= index;
+    }
+
+    // binary search for a slot holding value, there is one
+    private int indexOf(int value) {
+        int lo = 0, hi = sorted.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,101 @@
+package lib;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RaftTimer - A deadline that runs a task once it has passed, such as the
+ * election or heartbeat timeout of a node. The timers of all the nodes in
+ * the JVM share one small scheduler, a node has no thread of its own and
+ * costs nothing while none of its deadlines is due.
+ *
+ * reset only moves the deadline when it is later than the scheduled check,
+ * which then notices and waits again for the rest. A follower resetting its
+ * election timeout on every heartbeat therefore wakes up about once per
+ * timeout rather than once per reset. A timer fires once per reset.
+ */
+public class RaftTimer {
+
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "Raft-Timer");
+                t.setDaemon(true);
+                return t;
+            });
+    static {
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final long STOPPED = Long.MAX_VALUE;
+
+    private final Runnable task;
+
+    // in System.nanoTime, guarded by this
+    private long deadline = STOPPED;
+    private long scheduledFor = STOPPED;
+    private ScheduledFuture<?> check;
+
+    /**
+     * RaftTimer - A stopped timer.
+     *
+     * @param task what to run when the deadline passes, it must not block for long
+     */
+    public RaftTimer(Runnable task) {
+        this.task = task;
+    }
+
+    /**
+     * reset - Set the deadline to delayMillis from now, replacing the current one.
+     *
+     * @param delayMillis the delay in milliseconds
+     */
+    public synchronized void reset(long delayMillis) {
+        long now = System.nanoTime();
+        deadline = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        // a check already due before the deadline is left alone
+        if (scheduledFor > deadline)
+            schedule(now);
+    }
+
+    /**
+     * stop - Cancel the deadline.
+     */
+    public synchronized void stop() {
+        deadline = STOPPED;
+        scheduledFor = STOPPED;
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    private void schedule(long now) {
+        if (check != null)
+            check.cancel(false);
+        scheduledFor = deadline;
+        check = scheduler.schedule(this::fire, deadline - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void fire() {
+        synchronized (this) {
+            if (deadline == STOPPED)
+                return;
+            long now = System.nanoTime();
+            if (now < deadline) {
+                // reset since this check was scheduled
+                schedule(now);
+                return;
+            }
+            deadline = STOPPED;
+            scheduledFor = STOPPED;
+            check = null;
+        }
+
+        try {
+            task.run();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * ReadReply - This is a serializable packet wrapper for the read method of
+ * a raft node.
+ */
+public class ReadReply implements Serializable {
+    /**
+     * The read index, the state machine may serve the read once it has
+     * applied this index, -1 if the read cannot be served.
+     */
+    public int index;
+    /**
+     * The current term number.
+     */
+    public int term;
+    /**
+     * The leader flag, a read is only served by the leader.
+     */
+    public boolean isLeader;
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * ReadReply - Construct a read packet.
+     *
+     * @param index the read index, or -1
+     * @param term the current term
+     * @param isLeader the leader flag
+     */
+    public ReadReply(int index, int term, boolean isLeader) {
+        this.index = index;
+        this.term = term;
+        this.isLeader = isLeader;
+    }
+}
@@ -32,4 +32,16 @@ public class RemoteController extends UnicastRemoteObject implements RemoteContr
     public StartReply start(int command) throws RemoteException {
         return message_callback.start(command);
     }
+
+    public ReadReply read() throws RemoteException {
+        return message_callback.read();
+    }
+
+    public boolean transferLeadership(int target) throws RemoteException {
+        return message_callback.transferLeadership(target);
+    }
+
+    public void snapshot(int index, byte[] snapshot) throws RemoteException {
+        message_callback.snapshot(index, snapshot);
+    }
 }
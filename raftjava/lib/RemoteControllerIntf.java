@@ -15,4 +15,7 @@ public interface RemoteControllerIntf extends Remote {
     public Message deliverMessage(Message message) throws RemoteException;
     public GetStateReply getState() throws RemoteException;
     public StartReply start(int command) throws RemoteException;
+    public ReadReply read() throws RemoteException;
+    public boolean transferLeadership(int target) throws RemoteException;
+    public void snapshot(int index, byte[] snapshot) throws RemoteException;
 }
@@ -14,12 +14,19 @@ public class RequestVoteArgs implements Serializable {
     private int candidateId;
     private int lastLogIndex;
     private int lastLogTerm;
+    // the candidate was told to run by the leader handing over to it
+    private boolean leadershipTransfer;
 
     public RequestVoteArgs(int term, int candidateId, int lastLogIndex, int lastLogTerm) {
+        this(term, candidateId, lastLogIndex, lastLogTerm, false);
+    }
+
+    public RequestVoteArgs(int term, int candidateId, int lastLogIndex, int lastLogTerm, boolean leadershipTransfer) {
         this.term = term;
         this.candidateId = candidateId;
         this.lastLogIndex = lastLogIndex;
         this.lastLogTerm = lastLogTerm;
+        this.leadershipTransfer = leadershipTransfer;
     }
 
     public int getCandidateId() {
@@ -54,4 +61,8 @@ public class RequestVoteArgs implements Serializable {
         this.lastLogTerm = lastLogTerm;
     }
 
+    public boolean isLeadershipTransfer() {
+        return leadershipTransfer;
+    }
+
 }
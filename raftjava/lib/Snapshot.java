@@ -0,0 +1,22 @@
+package lib;
+
+/**
+ * Snapshot - State machine image covering the log up to lastIncludedIndex,
+ * the entry at that index had lastIncludedTerm. Never changed once created.
+ */
+public class Snapshot {
+
+    private final int lastIncludedIndex;
+    private final int lastIncludedTerm;
+    private final byte[] data;
+
+    public Snapshot(int lastIncludedIndex, int lastIncludedTerm, byte[] data) {
+        this.lastIncludedIndex = lastIncludedIndex;
+        this.lastIncludedTerm = lastIncludedTerm;
+        this.data = data == null ? new byte[0] : data;
+    }
+
+    public int getLastIncludedIndex() { return lastIncludedIndex; }
+    public int getLastIncludedTerm() { return lastIncludedTerm; }
+    public byte[] getData() { return data; }
+}
@@ -0,0 +1,23 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * Arguments of the TimeoutNow call, with which a leader handing over its
+ * leadership tells the follower it brought up to date to start an election
+ * right away instead of waiting for its election timeout.
+ */
+public class TimeoutNowArgs implements Serializable {
+    static final long serialVersionUID = 42L;
+    private int term;
+    private int leaderId;
+
+    public TimeoutNowArgs(int term, int leaderId) {
+        this.term = term;
+        this.leaderId = leaderId;
+    }
+
+    public int getTerm() {return term;}
+
+    public int getLeaderId() {return leaderId;}
+}
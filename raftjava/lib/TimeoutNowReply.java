@@ -0,0 +1,22 @@
+package lib;
+
+import java.io.Serializable;
+
+/**
+ * Reply to TimeoutNow. success is false when the follower is no longer in
+ * the leader's term, it then starts no election.
+ */
+public class TimeoutNowReply implements Serializable {
+    static final long serialVersionUID = 42L;
+    private int term;
+    private boolean success;
+
+    public TimeoutNowReply(int term, boolean success) {
+        this.term = term;
+        this.success = success;
+    }
+
+    public int getTerm() {return term;}
+
+    public boolean isSuccess() {return success;}
+}
@@ -1,7 +1,20 @@
 package lib;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is for a raft node to communicate with other nodes. All the
@@ -22,6 +35,64 @@ public class TransportLib {
      * The remote interface to register callback for the node.
      */
     private RemoteControllerIntf remoteController;
+    /**
+     * The direct connections to the peers, null when every message goes
+     * through the message server.
+     */
+    private NioTransport peers;
+    /**
+     * The host this node is one raft group of, null for a node with a
+     * transport of its own. Messages then go through the host's transport,
+     * tagged with the group.
+     */
+    private GroupTransport host;
+    private int group;
+    /**
+     * How long a message sent directly to a peer, or asynchronously without
+     * a timeout of its own, waits for its response.
+     */
+    private static final long PEER_TIMEOUT_MILLIS = 1000;
+    /**
+     * The most blocking calls of the message server one node makes at once to
+     * one destination for sendMessageAsync, and the most waiting behind them.
+     * A call beyond both, say to a peer that stopped answering, is dropped
+     * like a lost message.
+     */
+    private static final int MAX_SENDS_PER_DEST = 8;
+    private static final int MAX_QUEUED_PER_DEST = 4096;
+    /**
+     * Threads making those calls, shared by all the nodes in this JVM. There
+     * are at most MAX_SENDS_PER_DEST of them per node and destination.
+     */
+    private static final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Transport-Sender");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Completes the futures that time out or whose call was dropped, shared
+     * by all the nodes in this JVM.
+     */
+    private static final ExecutorService completions = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Transport-Completion");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The calls of this node in flight to each destination.
+     */
+    private final ConcurrentMap<Integer, Lane> lanes = new ConcurrentHashMap<>();
+    /**
+     * Expires the asynchronous calls of all the nodes in this JVM.
+     */
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Transport-Timer");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
 
     /**
      * Constructor the TransportLib for a node.
@@ -31,10 +102,32 @@ public class TransportLib {
      * @param messagleHandling the instance of the node
      */
     public TransportLib(int port, int id, MessageHandling messagleHandling) {
+        this(port, id, messagleHandling, null);
+    }
+
+    /**
+     * Constructor the TransportLib for a node that sends its messages straight
+     * to the peers over sockets. The message server at port, if any, is still
+     * registered with to receive the test commands and the applied entries,
+     * and it can still deliver messages to this node, so routing a cluster
+     * through it remains the way to inject faults.
+     *
+     * @param port             the port of server, 0 or less for none
+     * @param id               the id of this node
+     * @param messagleHandling the instance of the node
+     * @param peerAddresses    the address of every node by id, null to send
+     *                         through the message server
+     */
+    public TransportLib(int port, int id, MessageHandling messagleHandling, InetSocketAddress[] peerAddresses) {
         try {
-            this.remoteController = new RemoteController(messagleHandling);
-            ms = (MessagingLayer) Naming.lookup("rmi://localhost:" + port + "/MessageServer");
-            ms.register(id, remoteController);
+            if (port > 0) {
+                this.remoteController = new RemoteController(messagleHandling);
+                ms = (MessagingLayer) Naming.lookup("rmi://localhost:" + port + "/MessageServer");
+                ms.register(id, remoteController);
+            }
+            if (peerAddresses != null) {
+                peers = new NioTransport(id, peerAddresses, messagleHandling, PEER_TIMEOUT_MILLIS);
+            }
         } catch (Exception e) {
             System.out.println(port);
             e.printStackTrace();
@@ -43,6 +136,53 @@ public class TransportLib {
         this.id = id;
     }
 
+    /**
+     * Constructor the TransportLib for a node, or a host of raft groups,
+     * sending its messages only straight to the peers over sockets, with no
+     * message server.
+     *
+     * @param id            the id of this node
+     * @param receiver      receives the messages of the peers
+     * @param peerAddresses the address of every node by id
+     */
+    public TransportLib(int id, MessageReceiver receiver, InetSocketAddress[] peerAddresses) {
+        try {
+            peers = new NioTransport(id, peerAddresses, receiver, PEER_TIMEOUT_MILLIS);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        this.id = id;
+    }
+
+    /**
+     * Constructor the TransportLib for a node, or a host of raft groups, on
+     * a network in this JVM.
+     *
+     * @param network  the in-process network
+     * @param id       the id of this node
+     * @param receiver receives the messages sent to id
+     */
+    public TransportLib(LocalMessagingLayer network, int id, MessageReceiver receiver) {
+        network.register(id, receiver);
+        this.ms = network;
+        this.id = id;
+    }
+
+    /**
+     * Constructor the TransportLib for one raft group of a host, sharing the
+     * host's transport with its other groups. Use GroupTransport.register.
+     *
+     * @param host  the host's transport
+     * @param group the raft group
+     * @param id    the id of this node, that of the host
+     */
+    TransportLib(GroupTransport host, int group, int id) {
+        this.host = host;
+        this.group = group;
+        this.id = id;
+    }
+
     /**
      * Send message through message server(underlayer network), this function is
      * a synchronous call which means the thread will be blocked until the
@@ -57,9 +197,128 @@ public class TransportLib {
      * @throws RemoteException when RMI failed
      */
     public Message sendMessage(Message message) throws RemoteException {
+        if (host != null) {
+            return host.send(group, message);
+        }
+        if (peers != null) {
+            return peers.send(message);
+        }
         return ms.send(message);
     }
 
+    /**
+     * Send message without blocking, the returned future completes with the
+     * respond, or with null on sending failure or when there is none within
+     * PEER_TIMEOUT_MILLIS. See sendMessageAsync(Message, long).
+     *
+     * @param message the message to send.
+     * @return the future respond.
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message message) {
+        return sendMessageAsync(message, PEER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Send message without blocking. The future completes with the respond,
+     * or with null on sending failure like target node crashed, or when no
+     * respond came within timeoutMillis. It never completes exceptionally
+     * and never in the calling thread, so callbacks may take locks the
+     * caller holds. Cancelling it abandons the call, a late respond is
+     * dropped.
+     *
+     * Over direct peer connections nothing waits while the message is in
+     * flight. The message server is an RMI interface and only has blocking
+     * calls, so those are made on a pool thread, at most MAX_SENDS_PER_DEST
+     * at once per destination; a call that finds MAX_QUEUED_PER_DEST others
+     * waiting is dropped.
+     *
+     * @param message       the message to send.
+     * @param timeoutMillis how long to wait for the respond, 0 for no limit.
+     * @return the future respond.
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message message, long timeoutMillis) {
+        if (host != null) {
+            return host.sendAsync(group, message, timeoutMillis);
+        }
+        CompletableFuture<Message> reply;
+        if (peers != null) {
+            reply = peers.sendAsync(message);
+        } else {
+            CompletableFuture<Message> call = new CompletableFuture<>();
+            Lane lane = lanes.computeIfAbsent(message.getDest(), d -> new Lane());
+            boolean queued = lane.submit(() -> {
+                // abandoned while it waited for its turn
+                if (call.isDone())
+                    return;
+                try {
+                    call.complete(ms.send(message));
+                } catch (Exception e) {
+                    call.complete(null);
+                }
+            });
+            if (!queued)
+                completions.execute(() -> call.complete(null));
+            reply = call;
+        }
+
+        if (timeoutMillis > 0 && !reply.isDone()) {
+            ScheduledFuture<?> timeout = timer.schedule(() -> completions.execute(() -> reply.complete(null)),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            reply.whenComplete((r, e) -> timeout.cancel(false));
+        }
+        return reply;
+    }
+
+    /**
+     * Lane - The calls of a node to one destination: up to MAX_SENDS_PER_DEST
+     * run on sender threads, the rest wait in order for one of those threads.
+     */
+    private static final class Lane {
+        // calls on sender threads and calls waiting for one, guarded by this
+        private int running;
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+        // run the call, or queue it behind the running ones, false when the queue is full
+        synchronized boolean submit(Runnable call) {
+            if (running < MAX_SENDS_PER_DEST) {
+                running++;
+                senders.execute(() -> drain(call));
+                return true;
+            }
+            if (waiting.size() >= MAX_QUEUED_PER_DEST)
+                return false;
+            waiting.add(call);
+            return true;
+        }
+
+        // run calls on this thread until none are waiting
+        private void drain(Runnable call) {
+            while (call != null) {
+                call.run();
+                synchronized (this) {
+                    call = waiting.poll();
+                    if (call == null)
+                        running--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send an empty AppendEntriesArg without blocking, like sendMessageAsync.
+     * A raft group of a host may have it wait a little to go out in one
+     * message with the heartbeats its other groups send to the same host.
+     *
+     * @param message the heartbeat to send.
+     * @return the future respond.
+     */
+    public CompletableFuture<Message> sendHeartbeatAsync(Message message) {
+        if (host != null) {
+            return host.sendHeartbeat(group, message);
+        }
+        return sendMessageAsync(message);
+    }
+
     /**
      * Apply an ApplyMsg to the framework for testing, please call this function
      * whenever you finish an agreement. Refer to ApplyMsg class for more
@@ -69,6 +328,25 @@ public class TransportLib {
      * @throws RemoteException when RMI failed
      */
     public void applyChannel(ApplyMsg msg) throws RemoteException {
-        ms.applyChannel(msg);
+        if (host != null) {
+            host.apply(group, Collections.singletonList(msg));
+        } else if (ms != null) {
+            ms.applyChannel(msg);
+        }
+    }
+
+    /**
+     * Apply several ApplyMsgs in one call, in the order of the list. Prefer
+     * this over applyChannel when more than one entry is ready.
+     *
+     * @param msgs the msgs to apply.
+     * @throws RemoteException when RMI failed
+     */
+    public void applyChannelBatch(List<ApplyMsg> msgs) throws RemoteException {
+        if (host != null) {
+            host.apply(group, msgs);
+        } else if (ms != null) {
+            ms.applyChannelBatch(msgs);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,410 @@
+package lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * WriteAheadLog - Append-only, segmented file store for log entries.
+ *
+ * Every entry is a fixed size record in the LogRecords layout, so the
+ * record of an index sits at a known offset of the segment holding it.
+ * A segment file is named after the first index it holds and is sealed once
+ * it reaches entriesPerSegment records. Sealed segments are read through a
+ * read-only MappedByteBuffer, so reading old entries costs page cache reads
+ * and no heap beyond the destination buffer.
+ *
+ * append only buffers a record, sync makes everything appended so far
+ * durable. Concurrent sync calls are grouped: the caller that gets the
+ * sync lock forces the file once for everything written so far and the
+ * callers queued behind it find their records already durable.
+ *
+ * Once a snapshot covers a prefix of the log, the sealed segments holding
+ * only that prefix are deleted, so the files stay bounded like the log.
+ */
+public class WriteAheadLog {
+
+    public static final int RECORD_SIZE = LogRecords.RECORD_SIZE;
+
+    /**
+     * Receives the entries of the log in index order during replay.
+     */
+    public interface EntryConsumer {
+        public void accept(int term, int index, int command);
+    }
+
+    private final File dir;
+    private final int entriesPerSegment;
+    private final boolean fsync;
+
+    // first index of a segment -> its file
+    private final TreeMap<Integer, File> segments = new TreeMap<>();
+    private FileChannel active;
+    private int activeFirstIndex;
+    private int lastIndex;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+
+    // read-only mappings of sealed segments, by first index
+    private final Map<Integer, MappedByteBuffer> mapped = new HashMap<>();
+
+    // group commit bookkeeping
+    private final Object syncLock = new Object();
+    private long written;       // records handed to the OS so far
+    private long synced;        // records known to be durable
+    private volatile int syncedIndex;
+    private long syncCount;
+
+    public WriteAheadLog(File dir, int entriesPerSegment, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.entriesPerSegment = entriesPerSegment;
+        this.fsync = fsync;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                segments.put(Integer.parseInt(name.substring(8, name.length() - 4)), f);
+            }
+        }
+    }
+
+    private File segmentFile(int firstIndex) {
+        return new File(dir, String.format("segment-%010d.log", firstIndex));
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * replay - Read every valid record back, in index order. A torn or
+     * corrupt record ends the log: it is cut off together with anything after
+     * it. Must be called once, before the first append.
+     *
+     * @param consumer receives each entry.
+     * @throws IOException when the files cannot be read.
+     */
+    public synchronized void replay(EntryConsumer consumer) throws IOException {
+        int expected = segments.isEmpty() ? 1 : segments.firstKey();
+        Integer dropFrom = null; // first segment to delete
+
+        for (Map.Entry<Integer, File> seg : segments.entrySet()) {
+            if (seg.getKey() != expected) {
+                // a missing segment, nothing after the gap can be used
+                dropFrom = seg.getKey();
+                break;
+            }
+
+            try (FileChannel ch = open(seg.getValue())) {
+                int records = (int) (ch.size() / RECORD_SIZE);
+                ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, (long) records * RECORD_SIZE);
+                int valid = 0;
+                while (valid < records && LogRecords.index(map, 0, valid) == expected
+                        && LogRecords.valid(map, 0, valid)) {
+                    consumer.accept(LogRecords.term(map, 0, valid), expected, LogRecords.command(map, 0, valid));
+                    expected++;
+                    valid++;
+                }
+                if ((long) valid * RECORD_SIZE != ch.size()) {
+                    // torn write at the tail, drop it and everything after it
+                    ch.truncate((long) valid * RECORD_SIZE);
+                    dropFrom = seg.getKey() + 1;
+                }
+            }
+            if (dropFrom != null) break;
+        }
+
+        if (dropFrom != null) {
+            for (Integer first : segments.tailMap(dropFrom, true).keySet().toArray(new Integer[0])) {
+                segments.remove(first).delete();
+            }
+        }
+
+        lastIndex = expected - 1;
+        syncedIndex = lastIndex;
+        if (!segments.isEmpty()) {
+            activeFirstIndex = segments.lastKey();
+            active = open(segments.lastEntry().getValue());
+            active.position((long) (lastIndex + 1 - activeFirstIndex) * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * append - Buffer the record of the next entry, it is durable once a
+     * later sync returns.
+     *
+     * @param term the entry term
+     * @param index the entry index, must be the last index plus one
+     * @param command the entry command
+     * @throws IOException when writing fails.
+     */
+    public synchronized void append(int term, int index, int command) throws IOException {
+        if (index != lastIndex + 1)
+            throw new IllegalArgumentException("expected index " + (lastIndex + 1) + " got " + index);
+
+        if (active == null || index - activeFirstIndex >= entriesPerSegment)
+            roll(index);
+        if (!buffer.hasRemaining())
+            flush();
+
+        LogRecords.put(buffer, term, index, command);
+        lastIndex = index;
+    }
+
+    // seal the active segment and start a new one at firstIndex
+    private void roll(int firstIndex) throws IOException {
+        if (active != null) {
+            flush();
+            if (fsync) active.force(false);
+            active.close();
+        }
+        File f = segmentFile(firstIndex);
+        segments.put(firstIndex, f);
+        active = open(f);
+        active.truncate(0);
+        activeFirstIndex = firstIndex;
+    }
+
+    // hand the buffered records to the OS
+    private void flush() throws IOException {
+        buffer.flip();
+        written += buffer.remaining() / RECORD_SIZE;
+        while (buffer.hasRemaining())
+            active.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * sync - Make every record appended before this call durable, sharing one
+     * force with any concurrent callers.
+     *
+     * @throws IOException when forcing the file fails.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            if (active != null) flush();
+            target = written;
+        }
+
+        synchronized (syncLock) {
+            if (synced >= target) return; // a group commit ahead of us covered it
+
+            while (true) {
+                FileChannel ch;
+                long upTo;
+                int upToIndex;
+                synchronized (this) {
+                    if (active != null) flush();
+                    ch = active;
+                    upTo = written;
+                    upToIndex = lastIndex;
+                }
+                try {
+                    if (fsync && ch != null) ch.force(false);
+                } catch (ClosedChannelException e) {
+                    // rolled meanwhile, the old segment was forced when sealed
+                    continue;
+                }
+                synced = upTo;
+                syncedIndex = upToIndex;
+                syncCount++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * truncate - Remove every entry from fromIndex on, used when the leader
+     * overwrites a conflicting suffix.
+     *
+     * @param fromIndex the first index to remove.
+     * @throws IOException when the files cannot be changed.
+     */
+    public synchronized void truncate(int fromIndex) throws IOException {
+        if (fromIndex > lastIndex) return;
+        if (active != null) flush();
+
+        // the segment holding fromIndex and all after it change, forget their mappings
+        Integer holder = segments.floorKey(fromIndex);
+        mapped.keySet().removeIf(first -> holder == null || first >= holder);
+
+        for (Integer first : segments.tailMap(fromIndex, false).keySet().toArray(new Integer[0])) {
+            if (first == activeFirstIndex) {
+                active.close();
+                active = null;
+            }
+            segments.remove(first).delete();
+        }
+
+        Map.Entry<Integer, File> last = segments.lastEntry();
+        if (last != null && last.getKey() == fromIndex) {
+            if (last.getKey() == activeFirstIndex && active != null) active.close();
+            segments.remove(last.getKey()).delete();
+            active = null;
+            last = segments.lastEntry();
+        }
+
+        if (last != null) {
+            if (active == null || activeFirstIndex != last.getKey()) {
+                if (active != null) active.close();
+                active = open(last.getValue());
+                activeFirstIndex = last.getKey();
+            }
+            long size = (long) (fromIndex - activeFirstIndex) * RECORD_SIZE;
+            active.truncate(size);
+            active.position(size);
+            if (fsync) active.force(false);
+        }
+
+        lastIndex = fromIndex - 1;
+        if (syncedIndex > lastIndex) syncedIndex = lastIndex;
+    }
+
+    /**
+     * discardUpTo - Delete the sealed segments holding only entries up to
+     * index. The segment holding index + 1 and the active segment stay, so
+     * replay may still return entries up to index.
+     *
+     * @param index last index no longer needed.
+     */
+    public synchronized void discardUpTo(int index) {
+        while (segments.size() > 1) {
+            int first = segments.firstKey();
+            int next = segments.higherKey(first);
+            if (next - 1 > index) break;
+            mapped.remove(first);
+            segments.remove(first).delete();
+        }
+    }
+
+    /**
+     * reset - Delete every entry and continue with nextIndex, used when a
+     * snapshot from the leader replaces the whole log.
+     *
+     * @param nextIndex index of the next append.
+     * @throws IOException when the active segment cannot be closed.
+     */
+    public synchronized void reset(int nextIndex) throws IOException {
+        buffer.clear();
+        if (active != null) {
+            active.close();
+            active = null;
+        }
+        mapped.clear();
+        for (File f : segments.values())
+            f.delete();
+        segments.clear();
+        lastIndex = nextIndex - 1;
+        syncedIndex = lastIndex;
+    }
+
+    /**
+     * rewriteTerm - Overwrite the term of an entry in place, durable on return
+     * when fsync is on.
+     *
+     * @param index the entry to change.
+     * @param term the new term.
+     * @param command the command the entry holds.
+     * @throws IOException when writing fails.
+     */
+    public synchronized void rewriteTerm(int index, int term, int command) throws IOException {
+        if (index > lastIndex) return;
+        if (active != null) flush();
+
+        Map.Entry<Integer, File> seg = segments.floorEntry(index);
+        ByteBuffer rec = ByteBuffer.allocate(RECORD_SIZE);
+        LogRecords.put(rec, term, index, command);
+        rec.flip();
+
+        long pos = (long) (index - seg.getKey()) * RECORD_SIZE;
+        if (seg.getKey() == activeFirstIndex) {
+            // written only counts appended records, so sync would not force this
+            active.write(rec, pos);
+            if (fsync) active.force(false);
+        } else {
+            try (FileChannel ch = open(seg.getValue())) {
+                ch.write(rec, pos);
+                if (fsync) ch.force(false);
+            }
+        }
+    }
+
+    /**
+     * read - Copy the records of entries from..to (inclusive) into dst, in the
+     * LogRecords layout. Sealed segments are copied straight out of their
+     * mapping, the active segment is read from the file.
+     *
+     * @param from first index, at least 1.
+     * @param to last index, at most the last index of the log.
+     * @param dst destination with room for (to - from + 1) records.
+     * @throws IOException when reading fails.
+     */
+    public synchronized void read(int from, int to, ByteBuffer dst) throws IOException {
+        if (active != null) flush();
+
+        int i = from;
+        while (i <= to) {
+            Map.Entry<Integer, File> seg = segments.floorEntry(i);
+            int first = seg.getKey();
+            Integer next = segments.higherKey(first);
+            int end = Math.min(to, next == null ? lastIndex : next - 1);
+            long pos = (long) (i - first) * RECORD_SIZE;
+            int len = (end - i + 1) * RECORD_SIZE;
+
+            if (first == activeFirstIndex) {
+                ByteBuffer part = dst.duplicate();
+                part.limit(part.position() + len);
+                while (part.hasRemaining()) {
+                    if (active.read(part, pos + part.position() - dst.position()) < 0)
+                        throw new IOException("short read in " + seg.getValue());
+                }
+                dst.position(dst.position() + len);
+            } else {
+                MappedByteBuffer map = mapped.get(first);
+                if (map == null) {
+                    try (FileChannel ch = open(seg.getValue())) {
+                        map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    }
+                    mapped.put(first, map);
+                }
+                ByteBuffer src = map.duplicate();
+                src.position((int) pos);
+                src.limit((int) pos + len);
+                dst.put(src);
+            }
+            i = end + 1;
+        }
+    }
+
+    // highest index made durable by a sync
+    public int getSyncedIndex() { return syncedIndex; }
+    public synchronized int getLastIndex() { return lastIndex; }
+    public long getSyncCount() { synchronized (syncLock) { return syncCount; } }
+
+    public synchronized void close() {
+        try {
+            if (active != null) {
+                flush();
+                if (fsync) active.force(false);
+                active.close();
+                active = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}